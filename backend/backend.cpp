@@ -87,6 +87,8 @@ bool JVMWriter::doInitialization(Module &m) {
             if(*i == '.') *i = '_';
     }
     
+    numberCallSites();
+    findScalarGlobals();
     printHeader();
     printFields();
     printExternalMethods();
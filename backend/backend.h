@@ -23,6 +23,7 @@
 #ifndef BACKEND_H
 #define BACKEND_H
 
+#include <llvm/ADT/BitVector.h>
 #include <llvm/ADT/DenseMap.h>
 #include <llvm/ADT/DenseSet.h>
 #include <llvm/ADT/StringExtras.h>
@@ -36,6 +37,8 @@
 #include <llvm/Support/GetElementPtrTypeIterator.h>
 #include <llvm/Target/TargetData.h>
 
+#include <map>
+
 using namespace llvm;
 
 /**
@@ -69,8 +72,24 @@ class JVMWriter : public FunctionPass {
     unsigned int usedRegisters;
     /** Local variable number of the pointer to the packed list of varargs */
     unsigned int vaArgNum;
+    /** Local variable number of the ID of the current frame, for setjmp */
+    unsigned int jumpIdNum;
+    /** Number of setjmp calls printed so far in the current function */
+    unsigned int jumpSites;
+    /** Whether the current function creates a stack frame */
+    bool stackFrame;
+    /** Set of allocas promoted to local variables */
+    DenseSet<const Value*> promotedAllocas;
+    /** Mapping of addresses within promoted allocas to local variables */
+    DenseMap<const Value*, unsigned int> promotedVars;
+    /** Set of values computed on the operand stack where they are used */
+    DenseSet<const Value*> inlinedValues;
     /** Current instruction number */
     unsigned int instNum;
+    /** Set of global variables held in static fields of their own type */
+    DenseSet<const Value*> scalarGlobals;
+    /** Mapping of indirect call sites to inline cache numbers */
+    DenseMap<const Instruction*, unsigned int> callSites;
 
 public:
     JVMWriter(const TargetData *td, formatted_raw_ostream &o,
@@ -108,11 +127,15 @@ private:
     void printConstLoad(double d);
     void printConstLoad(const Constant *c);
     void printConstLoad(const std::string &str, bool cstring);
-    void printStaticConstant(const Constant *c);
+    void addStaticConstant(const Constant *c,
+        std::vector<unsigned char> &image, uint64_t offset,
+        std::vector<std::pair<uint64_t, const Constant*> > &relocations);
+    void printRelocation(uint64_t offset, const Constant *c);
     void printConstantExpr(const ConstantExpr *ce);
     
     // function.cpp
     std::string getCallSignature(const FunctionType *ty);
+    void numberCallSites();
     void printOperandPack(const Instruction *inst,
                           unsigned int minOperand,
                           unsigned int maxOperand);
@@ -120,6 +143,7 @@ private:
     void printIntrinsicCall(const IntrinsicInst *inst);
     void printCallInstruction(const Instruction *inst);
     void printInvokeInstruction(const InvokeInst *inst);
+    bool needsStackFrame(const Instruction *inst);
     void printLocalVariable(const Function &f, const Instruction *inst);
     void printFunctionBody(const Function &f);
     unsigned int getLocalVarNumber(const Value *v);
@@ -138,6 +162,15 @@ private:
                               const std::string &srcTypePrefix);
     void printCastInstruction(unsigned int op, const Value *v,
                               const Type *ty, const Type *srcTy);
+    unsigned int getFieldOffset(const StructType *structTy,
+                                unsigned int fieldIndex);
+    bool getConstantGepOffset(const Value *v,
+                              const Value *&base,
+                              unsigned int &offset);
+    bool isFoldedGep(const Instruction *inst);
+    bool isPromotableAlloca(const AllocaInst *inst,
+                            std::map<unsigned int, const Type*> &accesses);
+    void printPromotedAllocas(const Function &f);
     void printGepInstruction(const Value *v,
                              gep_type_iterator i,
                              gep_type_iterator e);
@@ -149,13 +182,23 @@ private:
     void printBitIntrinsic(const IntrinsicInst *inst);
     
     // loadstore.cpp
+    void printFunctionPointerLoad(const Function *f);
     void printValueLoad(const Value *v);
     void printValueStore(const Value *v);
+    void printTruncation(const Type *ty);
     void printIndirectLoad(const Value *v);
     void printIndirectLoad(const Type *ty);
     void printIndirectStore(const Value *ptr, const Value *val);
     void printIndirectStore(const Type *ty);
     
+    // locals.cpp
+    unsigned int getStackSize(const Value *v);
+    unsigned int getMaxStackSize(const Instruction *inst);
+    void findInlinedValues(const Function &f);
+    void addLiveValue(const Value *v, BitVector &live,
+                      const DenseMap<const Value*, unsigned int> &valueNums);
+    void allocateLocalVariables(const Function &f);
+    
     // name.cpp
     std::string sanitizeName(std::string name);
     std::string getValueName(const Value *v);
@@ -187,10 +230,13 @@ private:
     void printLabel(const std::string &label);
     
     // sections.cpp
+    void findScalarGlobals();
     void printHeader();
     void printFields();
     void printExternalMethods();
     void printConstructor();
+    void printDataImage(const std::vector<unsigned char> &image,
+                        uint64_t begin, uint64_t end);
     void printClInit();
     void printMainMethod();
     
@@ -203,4 +249,26 @@ private:
     std::string getTypePrefix(    const Type *ty, bool expand = false);
 };
 
+/**
+ * A ModulePass for moving regions of functions too large to be compiled
+ * efficiently, or at all, by the JVM into separate methods.
+ * 
+ * @author  David Roberts
+ */
+class MethodSplitter : public ModulePass {
+    /** The estimated size in bytes above which a function is split */
+    unsigned int maxSize;
+    /** Pass ID */
+    static char id;
+
+public:
+    MethodSplitter(unsigned int maxSize);
+
+private:
+    // splitter.cpp
+    void splitBlocks(Function &f);
+    void splitFunction(Function &f);
+    bool runOnModule(Module &m);
+};
+
 #endif
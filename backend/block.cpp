@@ -49,6 +49,15 @@ void JVMWriter::printBasicBlock(const BasicBlock *block) {
         if(i->getOpcode() == Instruction::PHI)
             // don't handle phi instruction in current block
             continue;
+        if(isFoldedGep(i))
+            // computed by the loads and stores using it
+            continue;
+        if(promotedAllocas.count(&*i))
+            // replaced by local variables
+            continue;
+        if(inlinedValues.count(&*i))
+            // computed where it is used
+            continue;
         printInstruction(i);
         if(i->getType() != Type::getVoidTy(block->getContext())
         && i->getOpcode() != Instruction::Invoke)
@@ -69,15 +78,18 @@ void JVMWriter::printInstruction(const Instruction *inst) {
     if(inst->getNumOperands() >= 2) right = inst->getOperand(1);
     switch(inst->getOpcode()) {
     case Instruction::Ret:
-        printSimpleInstruction("invokestatic",
-                               "lljvm/runtime/Memory/destroyStackFrame()V");
-        if(inst->getNumOperands() >= 1) {
+        // load the return value before the stack frame it may be computed
+        // from is destroyed
+        if(inst->getNumOperands() >= 1)
             printValueLoad(left);
+        if(stackFrame)
+            printSimpleInstruction("invokestatic",
+                "lljvm/runtime/Memory/destroyStackFrame()V");
+        if(inst->getNumOperands() >= 1)
             printSimpleInstruction(
                 getTypePrefix(left->getType(), true) + "return");
-        } else {
+        else
             printSimpleInstruction("return");
-        }
         break;
     case Instruction::Unwind:
         printSimpleInstruction("getstatic",
@@ -135,30 +135,88 @@ void JVMWriter::printSelectInstruction(const Value *cond,
 }
 
 /**
- * Print a switch instruction.
+ * Print a switch instruction. Successors containing phi instructions are
+ * reached through copies of their phi instructions printed after the switch,
+ * shared between the cases branching to them. Switches on ints use a
+ * tableswitch or a lookupswitch, whichever is cheaper, and switches on longs
+ * compare the condition with each case in turn.
  * 
  * @param inst  the switch instruction
  */
 void JVMWriter::printSwitchInstruction(const SwitchInst *inst) {
-    // TODO: This method does not handle switch statements when the
-    // successor contains phi instructions (the value of the phi instruction
-    // should be set before branching to the successor). Therefore, it has
-    // been replaced by the switch lowering pass. Once this method is
-    // fixed the switch lowering pass should be removed.
+    const BasicBlock *block = inst->getParent();
+    const BasicBlock *defaultDest = inst->getDefaultDest();
+    const bool wide = getBitWidth(inst->getCondition()->getType()) == 64;
     
-    std::map<int, unsigned int> cases;
-    for(unsigned int i = 1, e = inst->getNumCases(); i < e; i++)
-        cases[(int) inst->getCaseValue(i)->getValue().getSExtValue()] = i;
+    std::string labelname = "switch" + utostr(getUID());
+    std::map<const BasicBlock*, std::string> labels;
+    for(unsigned int i = 0, e = inst->getNumSuccessors(); i < e; i++) {
+        const BasicBlock *dest = inst->getSuccessor(i);
+        if(labels.count(dest))
+            continue;
+        if(wide || isa<PHINode>(dest->begin()))
+            labels[dest] = labelname + "$" + utostr(i);
+        else
+            labels[dest] = getLabelName(dest);
+    }
     
-    // TODO: tableswitch in cases where it won't increase the size of the
-    //       class file
     printValueLoad(inst->getCondition());
-    out << "\tlookupswitch\n";
-    for(std::map<int, unsigned int>::const_iterator
-        i = cases.begin(), e = cases.end(); i != e; i++)
-        out << "\t\t" << i->first << " : "
-            << getLabelName(inst->getSuccessor(i->second)) << '\n';
-    out << "\t\tdefault : " << getLabelName(inst->getDefaultDest()) << '\n';
+    if(wide) {
+        for(unsigned int i = 1, e = inst->getNumCases(); i < e; i++) {
+            printSimpleInstruction("dup2");
+            printConstLoad(inst->getCaseValue(i));
+            printSimpleInstruction("lcmp");
+            printSimpleInstruction("ifeq", labels[inst->getSuccessor(i)]);
+        }
+        printSimpleInstruction("goto", labels[defaultDest]);
+    } else {
+        std::map<int, const BasicBlock*> cases;
+        for(unsigned int i = 1, e = inst->getNumCases(); i < e; i++) {
+            // conditions are loaded sign extended, except for booleans
+            const APInt &value = inst->getCaseValue(i)->getValue();
+            cases[(int) (value.getBitWidth() == 1 ? value.getZExtValue()
+                                                  : value.getSExtValue())]
+                = inst->getSuccessor(i);
+        }
+        
+        // weigh the time and space costs of each kind of switch in the same
+        // way as javac
+        uint64_t numCases = cases.size();
+        int64_t low = 0, high = -1;
+        if(numCases > 0) {
+            low = cases.begin()->first;
+            high = cases.rbegin()->first;
+        }
+        uint64_t tableCost = 4 + (high - low + 1) + 3 * 3;
+        uint64_t lookupCost = 3 + 2 * numCases + 3 * numCases;
+        if(numCases > 0 && tableCost <= lookupCost) {
+            out << "\ttableswitch " << low << ' ' << high << '\n';
+            for(int64_t v = low; v <= high; v++) {
+                std::map<int, const BasicBlock*>::const_iterator i =
+                    cases.find((int) v);
+                out << "\t\t" << labels[i != cases.end() ? i->second
+                                                           : defaultDest]
+                    << '\n';
+            }
+        } else {
+            out << "\tlookupswitch\n";
+            for(std::map<int, const BasicBlock*>::const_iterator
+                i = cases.begin(), e = cases.end(); i != e; i++)
+                out << "\t\t" << i->first << " : " << labels[i->second]
+                    << '\n';
+        }
+        out << "\t\tdefault : " << labels[defaultDest] << '\n';
+    }
+    
+    for(unsigned int i = 0, e = inst->getNumSuccessors(); i < e; i++) {
+        const BasicBlock *dest = inst->getSuccessor(i);
+        if(labels[dest] != labelname + "$" + utostr(i))
+            continue;
+        printLabel(labels[dest]);
+        if(wide)
+            printSimpleInstruction("pop2");
+        printBranchInstruction(block, dest);
+    }
 }
 
 /**
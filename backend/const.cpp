@@ -22,6 +22,8 @@
 
 #include "backend.h"
 
+#include <algorithm>
+
 /**
  * Load the given pointer.
  * 
@@ -161,72 +163,92 @@ void JVMWriter::printConstLoad(const std::string &str, bool cstring) {
 }
 
 /**
- * Store the given static constant. The constant is stored to the address
- * currently on top of the stack, pushing the first address following the
- * constant onto the stack afterwards.
+ * Write the given static constant into an image of the data segment. Values
+ * only known at runtime, such as the addresses of global variables and
+ * functions, are left as zero in the image and recorded as relocations
+ * instead.
  * 
- * @param c  the constant
+ * @param c            the constant
+ * @param image        the image
+ * @param offset       the offset within the image at which to write the
+ *                     constant
+ * @param relocations  the offsets within the image of values to be stored
+ *                     at runtime, and the values
  */
-void JVMWriter::printStaticConstant(const Constant *c) {
-    if(isa<ConstantAggregateZero>(c) || c->isNullValue()) {
-        // zero initialised constant
-        printPtrLoad(targetData->getTypeAllocSize(c->getType()));
-        printSimpleInstruction("invokestatic",
-                               "lljvm/runtime/Memory/zero(II)I");
+void JVMWriter::addStaticConstant(const Constant *c,
+        std::vector<unsigned char> &image, uint64_t offset,
+        std::vector<std::pair<uint64_t, const Constant*> > &relocations) {
+    if(isa<ConstantAggregateZero>(c) || isa<UndefValue>(c)
+    || c->isNullValue())
+        // the data segment is initially zero
+        return;
+    if(isa<ConstantExpr>(c) || isa<GlobalValue>(c)) {
+        relocations.push_back(std::make_pair(offset, c));
         return;
     }
-    std::string typeDescriptor = getTypeDescriptor(c->getType());
+    
+    APInt bits;
     switch(c->getType()->getTypeID()) {
     case Type::IntegerTyID:
+        bits = cast<ConstantInt>(c)->getValue();
+        break;
     case Type::FloatTyID:
     case Type::DoubleTyID:
-        printConstLoad(c);
-        printSimpleInstruction("invokestatic",
-            "lljvm/runtime/Memory/pack(I" + typeDescriptor + ")I");
+        bits = cast<ConstantFP>(c)->getValueAPF().bitcastToAPInt();
         break;
     case Type::ArrayTyID:
         if(const ConstantArray *ca = dyn_cast<ConstantArray>(c))
             if(ca->isString()) {
-                bool cstring = ca->isCString();
-                printConstLoad(ca->getAsString(), cstring);
-                if(cstring)
-                    printSimpleInstruction("invokestatic",
-                        "lljvm/runtime/Memory/pack(ILjava/lang/String;)I");
-                else {
-                    printSimpleInstruction("invokevirtual", 
-                                           "java/lang/String/toCharArray()[C");
-                    printSimpleInstruction("invokestatic",
-                                           "lljvm/runtime/Memory/pack(I[C)I");
-                }
-                break;
+                const std::string str = ca->getAsString();
+                std::copy(str.begin(), str.end(), image.begin() + offset);
+                return;
             }
         // else fall through
-    case Type::VectorTyID:
-    case Type::StructTyID:
+    case Type::VectorTyID: {
+        const Type *elemTy = cast<SequentialType>(c->getType())
+                                 ->getElementType();
+        uint64_t elemSize = targetData->getTypeAllocSize(elemTy);
         for(unsigned int i = 0, e = c->getNumOperands(); i < e; i++)
-            printStaticConstant(cast<Constant>(c->getOperand(i)));
-        break;
-    case Type::PointerTyID:
-        if(const Function *f = dyn_cast<Function>(c))
-            printValueLoad(f);
-        else if(const GlobalVariable *g = dyn_cast<GlobalVariable>(c))
-            // initialise with address of global variable
-            printValueLoad(g);
-        else if(isa<ConstantPointerNull>(c) || c->isNullValue())
-            printSimpleInstruction("iconst_0");
-        else if(const ConstantExpr *ce = dyn_cast<ConstantExpr>(c))
-            printConstantExpr(ce);
-        else {
-            errs() << "Constant = " << *c << '\n';
-            llvm_unreachable("Invalid static initializer");
-        }
-        printSimpleInstruction("invokestatic",
-            "lljvm/runtime/Memory/pack(I" + typeDescriptor + ")I");
-        break;
+            addStaticConstant(cast<Constant>(c->getOperand(i)), image,
+                              offset + i * elemSize, relocations);
+        return;
+    }
+    case Type::StructTyID: {
+        const StructType *structTy = cast<StructType>(c->getType());
+        for(unsigned int i = 0, e = c->getNumOperands(); i < e; i++)
+            addStaticConstant(cast<Constant>(c->getOperand(i)), image,
+                              offset + getFieldOffset(structTy, i),
+                              relocations);
+        return;
+    }
     default:
-        errs() << "TypeID = " << c->getType()->getTypeID() << '\n';
-        llvm_unreachable("Invalid type in printStaticConstant()");
+        errs() << "Constant = " << *c << '\n';
+        llvm_unreachable("Invalid static initializer");
     }
+    
+    // little-endian, as stored by the runtime
+    unsigned int size = targetData->getTypeStoreSize(c->getType());
+    for(unsigned int i = 0; i < size; i++)
+        image[offset + i] = (unsigned char) bits.lshr(8 * i).getZExtValue();
+}
+
+/**
+ * Print the value of the given relocation, and store it at the given offset
+ * from the address on top of the stack, leaving the address on the stack.
+ * 
+ * @param offset  the offset from the address
+ * @param c       the value to store
+ */
+void JVMWriter::printRelocation(uint64_t offset, const Constant *c) {
+    printSimpleInstruction("dup");
+    printPtrLoad(offset);
+    if(const ConstantExpr *ce = dyn_cast<ConstantExpr>(c))
+        printConstantExpr(ce);
+    else
+        printValueLoad(c);
+    printSimpleInstruction("invokestatic",
+        "lljvm/runtime/Memory/store(II"
+        + getTypeDescriptor(c->getType()) + ")V");
 }
 
 /**
@@ -22,6 +22,8 @@
 
 #include "backend.h"
 
+#include <algorithm>
+
 /**
  * Return a unique ID.
  * 
@@ -53,6 +55,34 @@ std::string JVMWriter::getCallSignature(const FunctionType *ty) {
     return sig;
 }
 
+/**
+ * Number the prototyped indirect call sites in the current module, each of
+ * which is given an inline cache.
+ */
+void JVMWriter::numberCallSites() {
+    callSites.clear();
+    for(Module::const_iterator f = module->begin(),
+                               fe = module->end(); f != fe; f++)
+        for(Function::const_iterator b = f->begin(),
+                                     be = f->end(); b != be; b++)
+            for(BasicBlock::const_iterator i = b->begin(),
+                                           ie = b->end(); i != ie; i++) {
+                const Instruction *inst = i;
+                if(!isa<CallInst>(inst) && !isa<InvokeInst>(inst))
+                    continue;
+                const Value *functionVal = inst->getOperand(0);
+                if(isa<Function>(functionVal))
+                    continue;
+                const FunctionType *ty = cast<FunctionType>(
+                    cast<PointerType>(functionVal->getType())
+                        ->getElementType());
+                if(!getCallSignature(ty).empty()) {
+                    unsigned int n = callSites.size();
+                    callSites[inst] = n;
+                }
+            }
+}
+
 /**
  * Pack the specified operands of the given instruction into memory. The
  * address of the packed values is left on the top of the stack.
@@ -96,6 +126,20 @@ void JVMWriter::printFunctionCall(const Value *functionVal,
     if(const Function *f = dyn_cast<Function>(functionVal)) { // direct call
         const FunctionType *ty = f->getFunctionType();
         
+        if(getValueName(f) == "setjmp" && ty->getNumParams() == 1) {
+            // pass the ID of this frame and the index of this call, which
+            // longjmp passes back to the handler printed by printCatchJump
+            printValueLoad(inst->getOperand(origin));
+            printSimpleInstruction("iload", utostr(jumpIdNum));
+            printSimpleInstruction("ldc", utostr(jumpSites));
+            printSimpleInstruction("invokestatic",
+                "lljvm/runtime/Jump/setjmp(III)I");
+            printSimpleInstruction("istore", utostr(jumpIdNum));
+            printSimpleInstruction("iconst_0");
+            printLabel("setjmp$" + utostr(jumpSites++));
+            return;
+        }
+        
         //for(unsigned int i = origin, e = inst->getNumOperands(); i < e; i++)
         //    printValueLoad(inst->getOperand(i));
         
@@ -111,22 +155,34 @@ void JVMWriter::printFunctionCall(const Value *functionVal,
         else
             printSimpleInstruction("invokestatic",
                 classname + "/" + getValueName(f) + getCallSignature(ty));
-        
-        if(getValueName(f) == "setjmp") {
-            unsigned int varNum = usedRegisters++;
-            printSimpleInstruction("istore", utostr(varNum));
-            printSimpleInstruction("iconst_0");
-            printLabel("setjmp$" + utostr(varNum));
-        }
     } else { // indirect call
-        printValueLoad(functionVal);
         const FunctionType *ty = cast<FunctionType>(
             cast<PointerType>(functionVal->getType())->getElementType());
-        printOperandPack(inst, origin, inst->getNumOperands());
-        printSimpleInstruction("invokestatic",
-            "lljvm/runtime/Function/invoke_"
-            + getTypePostfix(ty->getReturnType()) + "(II)"
-            + getTypeDescriptor(ty->getReturnType()));
+        const std::string sig = getCallSignature(ty);
+        if(sig.empty()) {
+            // non-prototyped, so pack the arguments for the callee to unpack
+            // according to its own signature
+            printValueLoad(functionVal);
+            printOperandPack(inst, origin, inst->getNumOperands());
+            printSimpleInstruction("invokestatic",
+                "lljvm/runtime/Function/invoke_"
+                + getTypePostfix(ty->getReturnType()) + "(II)"
+                + getTypeDescriptor(ty->getReturnType()));
+            return;
+        }
+        // call through the inline cache of the call site, passing the
+        // function pointer ahead of the arguments on the operand stack
+        printSimpleInstruction("getstatic", classname + "/ic$"
+            + utostr(callSites.lookup(inst))
+            + " Ljava/lang/invoke/MethodHandle;");
+        printValueLoad(functionVal);
+        for(unsigned int i = 0, e = ty->getNumParams(); i < e; i++)
+            printValueLoad(inst->getOperand(i + origin));
+        if(ty->isVarArg())
+            printOperandPack(inst, ty->getNumParams() + origin,
+                                   inst->getNumOperands());
+        printSimpleInstruction("invokevirtual",
+            "java/lang/invoke/MethodHandle/invokeExact(I" + sig.substr(1));
     }
 }
 
@@ -257,7 +313,9 @@ unsigned int JVMWriter::getLocalVarNumber(const Value *v) {
 }
 
 /**
- * Print the block to catch Jump objects (thrown by longjmp).
+ * Print the block to catch Jump objects (thrown by longjmp). Jumps to setjmp
+ * calls made by other frames are rethrown, and the rest branch to the call
+ * given by their index, with the return value of setjmp on the stack.
  * 
  * @param numJumps  the number of setjmp calls made by the current function
  */
@@ -268,23 +326,50 @@ void JVMWriter::printCatchJump(unsigned int numJumps) {
     printLabel("catch_jump");
     printSimpleInstruction("astore", utostr(jumpVarNum));
     printSimpleInstruction("aload", utostr(jumpVarNum));
+    printSimpleInstruction("getfield", "lljvm/runtime/Jump/id I");
+    printSimpleInstruction("iload", utostr(jumpIdNum));
+    printSimpleInstruction("if_icmpne", "catch_jump$rethrow");
+    printSimpleInstruction("aload", utostr(jumpVarNum));
     printSimpleInstruction("getfield", "lljvm/runtime/Jump/value I");
-    for(unsigned int i = usedRegisters-1 - numJumps,
-                     e = usedRegisters-1; i < e; i++) {
-        if(debug >= 2)
-            printSimpleInstruction(".var " + utostr(i) + " is setjmp_id_"
-                + utostr(i) + " I from begin_method to end_method");
-        printSimpleInstruction("aload", utostr(jumpVarNum));
-        printSimpleInstruction("getfield", "lljvm/runtime/Jump/id I");
-        printSimpleInstruction("iload", utostr(i));
-        printSimpleInstruction("if_icmpeq", "setjmp$" + utostr(i));
-    }
+    printSimpleInstruction("aload", utostr(jumpVarNum));
+    printSimpleInstruction("getfield", "lljvm/runtime/Jump/site I");
+    out << "\ttableswitch 0\n";
+    for(unsigned int i = 0; i < numJumps; i++)
+        out << "\t\tsetjmp$" << i << '\n';
+    out << "\t\tdefault : catch_jump$default\n";
+    printLabel("catch_jump$default");
     printSimpleInstruction("pop");
+    printLabel("catch_jump$rethrow");
     printSimpleInstruction("aload", utostr(jumpVarNum));
     printSimpleInstruction("athrow");
-    if(debug >= 2)
+    if(debug >= 2) {
+        printSimpleInstruction(".var " + utostr(jumpIdNum) + " is setjmp_id"
+            " I from begin_method to end_method");
         printSimpleInstruction(".var " + utostr(jumpVarNum) + " is jump "
             "Llljvm/runtime/Jump; from begin_method to end_method");
+    }
+}
+
+/**
+ * Determine whether the given instruction allocates memory on the stack, so
+ * that the function containing it must create a stack frame to free the
+ * memory when it returns.
+ * 
+ * @param inst  the instruction
+ * @return      whether the instruction allocates memory on the stack
+ */
+bool JVMWriter::needsStackFrame(const Instruction *inst) {
+    if(isa<AllocaInst>(inst))
+        return !promotedAllocas.count(inst);
+    if((!isa<CallInst>(inst) && !isa<InvokeInst>(inst))
+    || isa<IntrinsicInst>(inst))
+        return false;
+    const Value *functionVal = inst->getOperand(0);
+    const FunctionType *ty = cast<FunctionType>(
+        cast<PointerType>(functionVal->getType())->getElementType());
+    // varargs, and the arguments of non-prototyped indirect calls, are
+    // packed into memory allocated on the stack
+    return ty->isVarArg();
 }
 
 /**
@@ -322,33 +407,55 @@ void JVMWriter::printFunction(const Function &f) {
                 + " is varargptr I from begin_method to end_method");
     }
     
-    // TODO: better stack depth analysis
-    unsigned int stackDepth = 8;
+    findInlinedValues(f);
+    printPromotedAllocas(f);
+    unsigned int maxStackSize = 0;
     unsigned int numJumps = 0;
+    stackFrame = false;
     for(const_inst_iterator i = inst_begin(&f), e = inst_end(&f);
         i != e; i++) {
-        if(stackDepth < i->getNumOperands())
-            stackDepth = i->getNumOperands();
-        if(i->getType() != Type::getVoidTy(f.getContext()))
-            printLocalVariable(f, &*i);
-        if(const CallInst *inst = dyn_cast<CallInst>(&*i))
-            if(!isa<IntrinsicInst>(inst)
-            && getValueName(inst->getOperand(0)) == "setjmp")
-                numJumps++;
+        if(needsStackFrame(&*i))
+            stackFrame = true;
+        maxStackSize = std::max(maxStackSize, getMaxStackSize(&*i));
+        if(isa<CallInst>(&*i) || isa<InvokeInst>(&*i))
+            if(const Function *callee =
+                    dyn_cast<Function>(i->getOperand(0)))
+                if(getValueName(callee) == "setjmp"
+                && callee->getFunctionType()->getNumParams() == 1)
+                    numJumps++;
     }
     
-    for(unsigned int i = 0; i < numJumps; i++) {
-        // initialise jump IDs to prevent class verification errors
+    // longjmp resumes at the exception handler with local variables as they
+    // were when it was thrown, which liveness within the function does not
+    // account for, and debugging information gives each value its own name
+    if(numJumps == 0 && debug < 2)
+        allocateLocalVariables(f);
+    else
+        for(const_inst_iterator i = inst_begin(&f), e = inst_end(&f);
+            i != e; i++)
+            if(i->getType() != Type::getVoidTy(f.getContext())
+            && !isFoldedGep(&*i) && !promotedAllocas.count(&*i)
+            && !inlinedValues.count(&*i))
+                printLocalVariable(f, &*i);
+    
+    jumpSites = 0;
+    if(numJumps) {
+        // the frame ID is zero until the first call to setjmp, which also
+        // prevents class verification errors
+        jumpIdNum = usedRegisters++;
         printSimpleInstruction("iconst_0");
-        printSimpleInstruction("istore", utostr(usedRegisters + i));
+        printSimpleInstruction("istore", utostr(jumpIdNum));
     }
     
     printLabel("begin_method");
-    printSimpleInstruction("invokestatic",
-                           "lljvm/runtime/Memory/createStackFrame()V");
+    // functions which do not allocate memory on the stack leave the stack
+    // as it is, so that calling them costs no more than a JVM call
+    if(stackFrame)
+        printSimpleInstruction("invokestatic",
+                               "lljvm/runtime/Memory/createStackFrame()V");
     printFunctionBody(f);
     if(numJumps) printCatchJump(numJumps);
-    printSimpleInstruction(".limit stack", utostr(stackDepth * 2));
+    printSimpleInstruction(".limit stack", utostr(maxStackSize));
     printSimpleInstruction(".limit locals", utostr(usedRegisters));
     printLabel("end_method");
     out << ".end method\n";
@@ -224,6 +224,238 @@ void JVMWriter::printCastInstruction(unsigned int op, const Value *v,
     }
 }
 
+/**
+ * Return the offset of the given field within a structure.
+ * 
+ * @param structTy    the structure type
+ * @param fieldIndex  the index of the field
+ * @return            the offset of the field in bytes
+ */
+unsigned int JVMWriter::getFieldOffset(const StructType *structTy,
+                                       unsigned int fieldIndex) {
+    unsigned int size = 0;
+    for(unsigned int f = 0; f < fieldIndex; f++)
+        size = alignOffset(
+            size + targetData->getTypeAllocSize(
+                structTy->getContainedType(f)),
+            targetData->getABITypeAlignment(
+                structTy->getContainedType(f + 1)));
+    return size;
+}
+
+/**
+ * Determine whether the given pointer is a getelementptr with constant
+ * indices, and if so find its base pointer and the offset it adds to it.
+ * 
+ * @param v       the pointer
+ * @param base    set to the base pointer of the getelementptr
+ * @param offset  set to the offset in bytes added to the base pointer
+ * @return        true if the pointer is a constant offset from its base
+ */
+bool JVMWriter::getConstantGepOffset(const Value *v,
+                                     const Value *&base,
+                                     unsigned int &offset) {
+    const User *gep;
+    if(const GetElementPtrInst *inst = dyn_cast<GetElementPtrInst>(v))
+        gep = inst;
+    else if(const ConstantExpr *ce = dyn_cast<ConstantExpr>(v)) {
+        if(ce->getOpcode() != Instruction::GetElementPtr)
+            return false;
+        gep = ce;
+    } else
+        return false;
+    
+    int64_t total = 0;
+    for(gep_type_iterator i = gep_type_begin(gep), e = gep_type_end(gep);
+        i != e; i++) {
+        const ConstantInt *c = dyn_cast<ConstantInt>(i.getOperand());
+        if(!c || c->getBitWidth() > 64)
+            return false;
+        if(const StructType *structTy = dyn_cast<StructType>(*i)) {
+            total += getFieldOffset(structTy, c->getZExtValue());
+        } else {
+            uint64_t size;
+            if(const SequentialType *seqTy = dyn_cast<SequentialType>(*i))
+                size = targetData->getTypeAllocSize(seqTy->getElementType());
+            else
+                size = targetData->getTypeAllocSize(*i);
+            total += c->getSExtValue() * (int64_t) size;
+        }
+        // negative and very large offsets are left to the iadd/isub code
+        if(total < 0 || total > 0x7fffffff)
+            return false;
+    }
+    base = gep->getOperand(0);
+    offset = total;
+    return true;
+}
+
+/**
+ * Determine whether the given instruction is a getelementptr which is folded
+ * into every instruction using it, so that it needn't be computed itself.
+ * This is the case if it has a constant offset, and is only used as the
+ * address of loads and stores.
+ * 
+ * @param inst  the instruction
+ * @return      true if the instruction is folded into its users
+ */
+bool JVMWriter::isFoldedGep(const Instruction *inst) {
+    const Value *base;
+    unsigned int offset;
+    if(!isa<GetElementPtrInst>(inst) || inst->use_empty()
+    || !getConstantGepOffset(inst, base, offset))
+        return false;
+    for(Value::use_const_iterator i = inst->use_begin(), e = inst->use_end();
+        i != e; i++) {
+        if(isa<LoadInst>(*i))
+            continue;
+        if(const StoreInst *store = dyn_cast<StoreInst>(*i))
+            if(store->getOperand(1) == inst && store->getOperand(0) != inst)
+                continue;
+        return false;
+    }
+    return true;
+}
+
+/**
+ * Record that a value of the given type is loaded from or stored at the given
+ * offset within an alloca, failing if the type is not a scalar or another
+ * type is accessed at the same offset.
+ * 
+ * @param accesses  the type accessed at each offset
+ * @param offset    the offset in bytes
+ * @param ty        the type
+ * @return          true if the access can be made to a local variable
+ */
+static bool addAllocaAccess(std::map<unsigned int, const Type*> &accesses,
+                            unsigned int offset, const Type *ty) {
+    switch(ty->getTypeID()) {
+    case Type::IntegerTyID:
+        switch(ty->getPrimitiveSizeInBits()) {
+        case 1: case 8: case 16: case 32: case 64: break;
+        default: return false;
+        }
+    case Type::FloatTyID:
+    case Type::DoubleTyID:
+    case Type::PointerTyID:
+        break;
+    default:
+        return false;
+    }
+    std::map<unsigned int, const Type*>::const_iterator i =
+        accesses.find(offset);
+    if(i != accesses.end())
+        return i->second == ty;
+    accesses[offset] = ty;
+    return true;
+}
+
+/**
+ * Determine whether the given alloca can be promoted to local variables.
+ * This is the case if its address never escapes the function, being only
+ * used as the address of loads and stores, directly or through folded
+ * getelementptrs, of scalars which do not overlap.
+ * 
+ * @param inst      the alloca
+ * @param accesses  set to the type accessed at each offset
+ * @return          true if the alloca can be promoted
+ */
+bool JVMWriter::isPromotableAlloca(
+        const AllocaInst *inst, std::map<unsigned int, const Type*> &accesses) {
+    // only small allocas are promoted, as each scalar takes a local variable
+    const ConstantInt *count = dyn_cast<ConstantInt>(inst->getArraySize());
+    if(!count)
+        return false;
+    uint64_t size = targetData->getTypeAllocSize(inst->getAllocatedType())
+                  * count->getZExtValue();
+    if(size > 64)
+        return false;
+    
+    for(Value::use_const_iterator i = inst->use_begin(), e = inst->use_end();
+        i != e; i++) {
+        const Value *base;
+        unsigned int offset;
+        if(const LoadInst *load = dyn_cast<LoadInst>(*i)) {
+            if(!addAllocaAccess(accesses, 0, load->getType()))
+                return false;
+        } else if(const StoreInst *store = dyn_cast<StoreInst>(*i)) {
+            if(store->getOperand(0) == inst
+            || !addAllocaAccess(accesses, 0, store->getOperand(0)->getType()))
+                return false;
+        } else if(isa<GetElementPtrInst>(*i)
+               && isFoldedGep(cast<Instruction>(*i))
+               && getConstantGepOffset(*i, base, offset) && base == inst) {
+            for(Value::use_const_iterator j = i->use_begin(),
+                                          je = i->use_end(); j != je; j++) {
+                const Type *ty = isa<LoadInst>(*j) ? j->getType()
+                               : j->getOperand(0)->getType();
+                if(!addAllocaAccess(accesses, offset, ty))
+                    return false;
+            }
+        } else
+            return false;
+    }
+    
+    uint64_t end = 0;
+    for(std::map<unsigned int, const Type*>::const_iterator
+            i = accesses.begin(), e = accesses.end(); i != e; i++) {
+        if(i->first < end)
+            return false;
+        end = i->first + targetData->getTypeAllocSize(i->second);
+    }
+    return end <= size;
+}
+
+/**
+ * Promote to local variables the allocas in the given function which can
+ * be promoted, so that loads and stores to them don't access memory. Each
+ * scalar within a promoted alloca is given its own local variable.
+ * 
+ * @param f  the function
+ */
+void JVMWriter::printPromotedAllocas(const Function &f) {
+    promotedAllocas.clear();
+    promotedVars.clear();
+    for(const_inst_iterator i = inst_begin(&f), e = inst_end(&f);
+        i != e; i++) {
+        const AllocaInst *inst = dyn_cast<AllocaInst>(&*i);
+        std::map<unsigned int, const Type*> accesses;
+        if(!inst || !isPromotableAlloca(inst, accesses))
+            continue;
+        promotedAllocas.insert(inst);
+        
+        std::map<unsigned int, unsigned int> varNums;
+        for(std::map<unsigned int, const Type*>::const_iterator
+                j = accesses.begin(), je = accesses.end(); j != je; j++) {
+            const Type *ty = j->second;
+            unsigned int varNum = usedRegisters++;
+            if(getBitWidth(ty) == 64)
+                usedRegisters++; // 64 bit types occupy 2 registers
+            varNums[j->first] = varNum;
+            if(debug >= 2)
+                printSimpleInstruction(".var " + utostr(varNum) + " is "
+                    + getValueName(inst) + '$' + utostr(j->first) + ' '
+                    + getTypeDescriptor(ty)
+                    + " from begin_method to end_method");
+            // initialise variable to avoid class verification errors
+            printSimpleInstruction(getTypePrefix(ty, true) + "const_0");
+            printSimpleInstruction(getTypePrefix(ty, true) + "store",
+                                   utostr(varNum));
+        }
+        
+        if(varNums.count(0))
+            promotedVars[inst] = varNums[0];
+        for(Value::use_const_iterator j = inst->use_begin(),
+                                      je = inst->use_end(); j != je; j++) {
+            const Value *base;
+            unsigned int offset;
+            if(isa<GetElementPtrInst>(*j)
+            && getConstantGepOffset(*j, base, offset))
+                promotedVars[*j] = varNums[offset];
+        }
+    }
+}
+
 /**
  * Print a getelementptr instruction.
  * 
@@ -244,14 +476,8 @@ void JVMWriter::printGepInstruction(const Value *v,
         const Value *indexValue = i.getOperand();
         
         if(const StructType *structTy = dyn_cast<StructType>(*i)) {
-            for(unsigned int f = 0,
-                    fieldIndex = cast<ConstantInt>(indexValue)->getZExtValue();
-                f < fieldIndex; f++)
-                size = alignOffset(
-                    size + targetData->getTypeAllocSize(
-                        structTy->getContainedType(f)),
-                    targetData->getABITypeAlignment(
-                        structTy->getContainedType(f + 1)));
+            size = getFieldOffset(structTy,
+                cast<ConstantInt>(indexValue)->getZExtValue());
             printPtrLoad(size);
             printSimpleInstruction("iadd");
         } else {
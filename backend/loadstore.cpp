@@ -22,6 +22,44 @@
 
 #include "backend.h"
 
+/**
+ * Return a unique ID.
+ * 
+ * @return  a unique ID
+ */
+static uint64_t getUID() {
+    static uint64_t x = 0;
+    return ++x;
+}
+
+/**
+ * Load the function pointer for the given function, caching it in a static
+ * field so that it is only looked up the first time it is loaded.
+ * 
+ * @param f  the function
+ */
+void JVMWriter::printFunctionPointerLoad(const Function *f) {
+    std::string sig = getValueName(f) + getCallSignature(f->getFunctionType());
+    std::string field = classname + "/fp$" + getValueName(f) + " I";
+    std::string labelname = "fp$" + utostr(getUID());
+    // function pointers are never zero, so zero means not yet looked up
+    printSimpleInstruction("getstatic", field);
+    printSimpleInstruction("dup");
+    printSimpleInstruction("ifne", labelname);
+    printSimpleInstruction("pop");
+    if(externRefs.count(f))
+        printSimpleInstruction("CLASSFORMETHOD", sig);
+    else
+        printSimpleInstruction("ldc", '"' + classname + '"');
+    printSimpleInstruction("ldc", '"' + sig + '"');
+    printSimpleInstruction("invokestatic",
+        "lljvm/runtime/Function/getFunctionPointer"
+        "(Ljava/lang/String;Ljava/lang/String;)I");
+    printSimpleInstruction("dup");
+    printSimpleInstruction("putstatic", field);
+    printLabel(labelname);
+}
+
 /**
  * Load the given value.
  * 
@@ -29,16 +67,7 @@
  */
 void JVMWriter::printValueLoad(const Value *v) {
     if(const Function *f = dyn_cast<Function>(v)) {
-        std::string sig = getValueName(f)
-                        + getCallSignature(f->getFunctionType());
-        if(externRefs.count(v))
-            printSimpleInstruction("CLASSFORMETHOD", sig);
-        else
-            printSimpleInstruction("ldc", '"' + classname + '"');
-        printSimpleInstruction("ldc", '"' + sig + '"');
-        printSimpleInstruction("invokestatic",
-            "lljvm/runtime/Function/getFunctionPointer"
-            "(Ljava/lang/String;Ljava/lang/String;)I");
+        printFunctionPointerLoad(f);
     } else if(isa<GlobalVariable>(v)) {
         const Type *ty = cast<PointerType>(v->getType())->getElementType();
         if(externRefs.count(v))
@@ -52,6 +81,10 @@ void JVMWriter::printValueLoad(const Value *v) {
         printConstantExpr(ce);
     } else if(const Constant *c = dyn_cast<Constant>(v)) {
         printConstLoad(c);
+    } else if(inlinedValues.count(v)) {
+        // compute the value where it is used
+        printInstruction(cast<Instruction>(v));
+        printTruncation(v->getType());
     } else {
         if(getLocalVarNumber(v) <= 3)
             printSimpleInstruction(
@@ -76,16 +109,7 @@ void JVMWriter::printValueStore(const Value *v) {
         errs() << "Value  = " << *v << '\n';
         llvm_unreachable("Invalid value");
     }
-    unsigned int bitWidth = getBitWidth(v->getType());
-    // truncate int
-    if(bitWidth == 16)
-        printSimpleInstruction("i2s");
-    else if(bitWidth == 8)
-        printSimpleInstruction("i2b");
-    else if(bitWidth == 1) {
-        printSimpleInstruction("iconst_1");
-        printSimpleInstruction("iand");
-    }
+    printTruncation(v->getType());
     if(getLocalVarNumber(v) <= 3)
         printSimpleInstruction(
             getTypePrefix(v->getType(), true) + "store_"
@@ -98,16 +122,58 @@ void JVMWriter::printValueStore(const Value *v) {
             + " ; " + getValueName(v));
 }
 
+/**
+ * Truncate the value of the given type on top of the stack to its bit width.
+ * 
+ * @param ty  the type of the value
+ */
+void JVMWriter::printTruncation(const Type *ty) {
+    unsigned int bitWidth = getBitWidth(ty);
+    if(bitWidth == 16)
+        printSimpleInstruction("i2s");
+    else if(bitWidth == 8)
+        printSimpleInstruction("i2b");
+    else if(bitWidth == 1) {
+        printSimpleInstruction("iconst_1");
+        printSimpleInstruction("iand");
+    }
+}
+
 /**
  * Load a value from the given address.
  * 
  * @param v  the address
  */
 void JVMWriter::printIndirectLoad(const Value *v) {
-    printValueLoad(v);
     const Type *ty = v->getType();
     if(const PointerType *p = dyn_cast<PointerType>(ty))
         ty = p->getElementType();
+    DenseMap<const Value*, unsigned int>::const_iterator promoted =
+        promotedVars.find(v);
+    if(promoted != promotedVars.end()) {
+        printSimpleInstruction(getTypePrefix(ty, true) + "load",
+                               utostr(promoted->second));
+        return;
+    }
+    if(scalarGlobals.count(v)) {
+        printSimpleInstruction("getstatic", classname + "/"
+            + getValueName(v) + ' ' + getTypeDescriptor(ty));
+        return;
+    }
+    const Value *base;
+    unsigned int offset;
+    if(getConstantGepOffset(v, base, offset)) {
+        printCastInstruction(Instruction::IntToPtr, base,
+                             NULL, base->getType());
+        if(offset > 0) {
+            // fold the constant offset into the load
+            printPtrLoad(offset);
+            printSimpleInstruction("invokestatic", "lljvm/runtime/Memory/load_"
+                + getTypePostfix(ty) + "(II)" + getTypeDescriptor(ty));
+            return;
+        }
+    } else
+        printValueLoad(v);
     printIndirectLoad(ty);
 }
 
@@ -129,7 +195,36 @@ void JVMWriter::printIndirectLoad(const Type *ty) {
  * @param val  the value to store
  */
 void JVMWriter::printIndirectStore(const Value *ptr, const Value *val) {
-    printValueLoad(ptr);
+    DenseMap<const Value*, unsigned int>::const_iterator promoted =
+        promotedVars.find(ptr);
+    if(promoted != promotedVars.end()) {
+        printValueLoad(val);
+        printSimpleInstruction(getTypePrefix(val->getType(), true) + "store",
+                               utostr(promoted->second));
+        return;
+    }
+    if(scalarGlobals.count(ptr)) {
+        printValueLoad(val);
+        printSimpleInstruction("putstatic", classname + "/"
+            + getValueName(ptr) + ' ' + getTypeDescriptor(val->getType()));
+        return;
+    }
+    const Value *base;
+    unsigned int offset;
+    if(getConstantGepOffset(ptr, base, offset)) {
+        printCastInstruction(Instruction::IntToPtr, base,
+                             NULL, base->getType());
+        if(offset > 0) {
+            // fold the constant offset into the store
+            printPtrLoad(offset);
+            printValueLoad(val);
+            printSimpleInstruction("invokestatic",
+                "lljvm/runtime/Memory/store(II"
+                + getTypeDescriptor(val->getType()) + ")V");
+            return;
+        }
+    } else
+        printValueLoad(ptr);
     printValueLoad(val);
     printIndirectStore(val->getType());
 }
@@ -0,0 +1,419 @@
+/*
+* Copyright (c) 2009-2010 David Roberts <d@vidr.cc>
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+*/
+
+#include "backend.h"
+
+#include <algorithm>
+
+/**
+ * Return the number of operand stack slots taken by a value of the given
+ * type.
+ * 
+ * @param ty  the type
+ * @return    the number of slots
+ */
+static unsigned int getStackSlots(const Type *ty) {
+    switch(ty->getTypeID()) {
+    case Type::IntegerTyID:
+        return ty->getPrimitiveSizeInBits() > 32 ? 2 : 1;
+    case Type::DoubleTyID:
+        return 2;
+    case Type::FloatTyID:
+    case Type::PointerTyID:
+    case Type::StructTyID:
+    case Type::ArrayTyID:
+    case Type::VectorTyID:
+        return 1;
+    default: // labels and metadata are never loaded
+        return 0;
+    }
+}
+
+/**
+ * Return an upper bound on the number of operand stack slots used to load
+ * the given value. Constant expressions are computed on the stack from their
+ * operands.
+ * 
+ * @param v  the value
+ * @return   the number of slots
+ */
+unsigned int JVMWriter::getStackSize(const Value *v) {
+    const ConstantExpr *ce = dyn_cast<ConstantExpr>(v);
+    if(inlinedValues.count(v))
+        return getMaxStackSize(cast<Instruction>(v));
+    if(!ce)
+        return getStackSlots(v->getType());
+    unsigned int depth = 0, size = 0;
+    for(unsigned int i = 0, e = ce->getNumOperands(); i < e; i++) {
+        size = std::max(size, depth + getStackSize(ce->getOperand(i)));
+        depth += getStackSlots(ce->getOperand(i)->getType());
+    }
+    // allow for the constants pushed by the expression itself, such as the
+    // element sizes of a getelementptr
+    return std::max(size, depth) + 2;
+}
+
+/**
+ * Return an upper bound on the number of operand stack slots used by the
+ * given instruction, which loads each of its operands in turn.
+ * 
+ * @param inst  the instruction
+ * @return      the number of slots
+ */
+unsigned int JVMWriter::getMaxStackSize(const Instruction *inst) {
+    unsigned int depth = 0, size = 0;
+    for(unsigned int i = 0, e = inst->getNumOperands(); i < e; i++) {
+        size = std::max(size, depth + getStackSize(inst->getOperand(i)));
+        depth += getStackSlots(inst->getOperand(i)->getType());
+    }
+    // allow for the values pushed by the instruction itself, such as the
+    // method handle and function pointer of an indirect call, the address
+    // of packed varargs, or the offset of a folded getelementptr
+    return std::max(size, depth) + 8;
+}
+
+/**
+ * Determine whether the given instruction may read memory, or may otherwise
+ * depend on when it is executed.
+ * 
+ * @param inst  the instruction
+ * @return      true if the instruction may read memory
+ */
+static bool mayRead(const Instruction *inst) {
+    switch(inst->getOpcode()) {
+    case Instruction::UDiv:
+    case Instruction::SDiv:
+    case Instruction::URem:
+    case Instruction::SRem:
+        // division by zero throws an exception
+        return true;
+    }
+    return inst->mayReadFromMemory();
+}
+
+/**
+ * Determine whether the given instruction may write memory, or may otherwise
+ * have side effects.
+ * 
+ * @param inst  the instruction
+ * @return      true if the instruction may write memory
+ */
+static bool mayWrite(const Instruction *inst) {
+    return inst->mayWriteToMemory() || isa<CallInst>(inst)
+        || isa<AllocaInst>(inst) || isa<VAArgInst>(inst);
+}
+
+/**
+ * Find the instructions whose values can be computed on the operand stack
+ * where they are used, rather than being stored in local variables.
+ * 
+ * An instruction is inlined if its value is used once, by a later
+ * instruction in the same block which loads it exactly once, and moving its
+ * computation to the use does not move it past an instruction it depends on
+ * or which depends on it: memory reads may not move past memory writes, and
+ * memory writes may not move past either. The operands of an inlined
+ * instruction may themselves be inlined, forming an expression tree.
+ * 
+ * @param f  the function
+ */
+void JVMWriter::findInlinedValues(const Function &f) {
+    inlinedValues.clear();
+    if(debug >= 2)
+        // give each value its own local variable for debugging
+        return;
+    for(Function::const_iterator b = f.begin(), be = f.end(); b != be; b++) {
+        std::vector<const Instruction*> insts;
+        DenseMap<const Instruction*, unsigned int> positions;
+        for(BasicBlock::const_iterator i = b->begin(), e = b->end();
+            i != e; i++) {
+            positions[i] = insts.size();
+            insts.push_back(i);
+        }
+        // the effects of computing the value of each instruction, including
+        // those of its inlined operands
+        std::vector<bool> reads(insts.size()), writes(insts.size());
+        for(unsigned int k = 0; k < insts.size(); k++) {
+            const Instruction *inst = insts[k];
+            reads[k] = mayRead(inst);
+            writes[k] = mayWrite(inst);
+            for(unsigned int j = 0, e = inst->getNumOperands(); j < e; j++)
+                if(inlinedValues.count(inst->getOperand(j))) {
+                    unsigned int pos = positions[
+                        cast<Instruction>(inst->getOperand(j))];
+                    reads[k] = reads[k] || reads[pos];
+                    writes[k] = writes[k] || writes[pos];
+                }
+            
+            if(inst->getType() == Type::getVoidTy(f.getContext())
+            || !inst->hasOneUse() || isa<PHINode>(inst)
+            || isa<TerminatorInst>(inst) || isa<AllocaInst>(inst)
+            || isa<VAArgInst>(inst) || isFoldedGep(inst))
+                continue;
+            if(const CallInst *call = dyn_cast<CallInst>(inst))
+                if(const Function *callee =
+                        dyn_cast<Function>(call->getOperand(0)))
+                    if(getValueName(callee) == "setjmp")
+                        // longjmp resumes after the call with an empty stack
+                        continue;
+            
+            const Instruction *user = dyn_cast<Instruction>(*inst->use_begin());
+            if(!user || user->getParent() != b || isa<PHINode>(user)
+            // the arguments of invoke instructions are loaded within the
+            // range of its exception handler
+            || isa<InvokeInst>(user)
+            // these load the operand more than once
+            || isa<VAArgInst>(user)
+            || (isa<GetElementPtrInst>(user)
+                && cast<GetElementPtrInst>(user)->hasAllConstantIndices()))
+                continue;
+            if(const IntrinsicInst *intr = dyn_cast<IntrinsicInst>(user))
+                if(intr->getIntrinsicID() == Intrinsic::vastart
+                || intr->getIntrinsicID() == Intrinsic::vacopy
+                || intr->getIntrinsicID() == Intrinsic::vaend)
+                    continue;
+            if(isa<SelectInst>(user) && user->getOperand(0) != inst
+            && writes[k])
+                // only one of the values of a select is computed
+                continue;
+            
+            bool movable = true;
+            if(reads[k] || writes[k])
+                for(unsigned int pos = k + 1; movable && insts[pos] != user;
+                    pos++) {
+                    const Instruction *next = insts[pos];
+                    if(mayWrite(next) || (writes[k] && mayRead(next)))
+                        movable = false;
+                }
+            if(movable)
+                inlinedValues.insert(inst);
+        }
+    }
+}
+
+/**
+ * Mark the given value as live, along with any values held in local
+ * variables which are used to compute it where it is used.
+ * 
+ * @param v          the value
+ * @param live       the set of live values
+ * @param valueNums  the numbers of values held in shared local variables
+ */
+void JVMWriter::addLiveValue(const Value *v, BitVector &live,
+        const DenseMap<const Value*, unsigned int> &valueNums) {
+    DenseMap<const Value*, unsigned int>::const_iterator i = valueNums.find(v);
+    if(i != valueNums.end())
+        live.set(i->second);
+    if(inlinedValues.count(v)) {
+        // inlined instructions are computed from their operands by their use
+        const Instruction *inst = cast<Instruction>(v);
+        for(unsigned int j = 0, e = inst->getNumOperands(); j < e; j++)
+            addLiveValue(inst->getOperand(j), live, valueNums);
+    } else if(const GetElementPtrInst *gep = dyn_cast<GetElementPtrInst>(v)) {
+        // loads and stores through getelementptrs with constant indices,
+        // folded or not, compute the address from the base
+        if(gep->hasAllConstantIndices())
+            addLiveValue(gep->getOperand(0), live, valueNums);
+    }
+}
+
+/**
+ * Record that two values may not share a local variable, if they would
+ * otherwise be able to.
+ * 
+ * @param v           the number of the first value
+ * @param u           the number of the second value
+ * @param types       the local variable type of each value
+ * @param interferes  the values interfering with each value
+ */
+static void addInterference(unsigned int v, unsigned int u,
+        const std::vector<char> &types,
+        std::vector<std::vector<unsigned int> > &interferes) {
+    if(v == u || types[v] != types[u])
+        return;
+    interferes[v].push_back(u);
+    interferes[u].push_back(v);
+}
+
+/**
+ * Allocate local variables for the values computed by the given function.
+ * Values of the same type which are never live at the same time share a
+ * local variable, so local variables are only initialised where the class
+ * verifier would otherwise find one unassigned: phi nodes with undefined
+ * incoming values, which are not copied.
+ * 
+ * Phi nodes are treated as being assigned at the end of each predecessor,
+ * where they are copied to, so they never share a local variable with any
+ * value live out of a predecessor, or with each other.
+ * 
+ * @param f  the function
+ */
+void JVMWriter::allocateLocalVariables(const Function &f) {
+    std::vector<const Instruction*> values;
+    DenseMap<const Value*, unsigned int> valueNums;
+    for(const_inst_iterator i = inst_begin(&f), e = inst_end(&f);
+        i != e; i++) {
+        if(i->getType() != Type::getVoidTy(f.getContext())
+        && !isFoldedGep(&*i) && !promotedAllocas.count(&*i)
+        && !inlinedValues.count(&*i)) {
+            valueNums[&*i] = values.size();
+            values.push_back(&*i);
+        }
+    }
+    const unsigned int n = values.size();
+    
+    std::vector<const BasicBlock*> blocks;
+    DenseMap<const BasicBlock*, unsigned int> blockNums;
+    for(Function::const_iterator b = f.begin(), be = f.end(); b != be; b++) {
+        blockNums[b] = blocks.size();
+        blocks.push_back(b);
+    }
+    
+    // find the values used and assigned by each block, and the values
+    // copied to phi nodes at the end of each block
+    std::vector<BitVector> uses(blocks.size(), BitVector(n));
+    std::vector<BitVector> notAssigned(blocks.size(), BitVector(n, true));
+    std::vector<BitVector> copied(blocks.size(), BitVector(n));
+    for(unsigned int b = 0; b < blocks.size(); b++) {
+        const BasicBlock *block = blocks[b];
+        for(BasicBlock::const_iterator i = block->begin(), e = block->end();
+            i != e; i++) {
+            if(valueNums.count(i))
+                notAssigned[b].reset(valueNums[i]);
+            if(isa<PHINode>(i))
+                continue;
+            for(unsigned int j = 0, je = i->getNumOperands(); j < je; j++)
+                addLiveValue(i->getOperand(j), uses[b], valueNums);
+        }
+        // values assigned by a block are used after they are assigned
+        uses[b] &= notAssigned[b];
+        const TerminatorInst *term = block->getTerminator();
+        for(unsigned int s = 0, se = term->getNumSuccessors(); s < se; s++)
+            for(BasicBlock::const_iterator i = term->getSuccessor(s)->begin();
+                isa<PHINode>(i); i++)
+                addLiveValue(cast<PHINode>(i)->getIncomingValueForBlock(block),
+                             copied[b], valueNums);
+    }
+    
+    // find the values live at the start and end of each block
+    std::vector<BitVector> liveIn(blocks.size(), BitVector(n));
+    std::vector<BitVector> liveOut(blocks.size(), BitVector(n));
+    for(bool changed = true; changed; ) {
+        changed = false;
+        for(unsigned int b = blocks.size(); b-- > 0; ) {
+            BitVector out = copied[b];
+            const TerminatorInst *term = blocks[b]->getTerminator();
+            for(unsigned int s = 0, se = term->getNumSuccessors(); s < se; s++)
+                out |= liveIn[blockNums[term->getSuccessor(s)]];
+            BitVector in = out;
+            in &= notAssigned[b];
+            in |= uses[b];
+            liveOut[b] = out;
+            if(in != liveIn[b]) {
+                liveIn[b] = in;
+                changed = true;
+            }
+        }
+    }
+    
+    // values of the same type interfere if one is assigned while the other
+    // is live
+    std::vector<char> types(n);
+    for(unsigned int v = 0; v < n; v++)
+        types[v] = getTypeID(values[v]->getType(), true);
+    std::vector<std::vector<unsigned int> > interferes(n);
+    for(unsigned int b = 0; b < blocks.size(); b++) {
+        const BasicBlock *block = blocks[b];
+        const TerminatorInst *term = block->getTerminator();
+        BitVector live = liveOut[b];
+        for(unsigned int j = 0, je = term->getNumOperands(); j < je; j++)
+            addLiveValue(term->getOperand(j), live, valueNums);
+        
+        // phi nodes of the successors are assigned at the end of the block
+        std::vector<unsigned int> copies;
+        for(unsigned int s = 0, se = term->getNumSuccessors(); s < se; s++)
+            for(BasicBlock::const_iterator i = term->getSuccessor(s)->begin();
+                isa<PHINode>(i); i++)
+                copies.push_back(valueNums[i]);
+        for(unsigned int c = 0; c < copies.size(); c++) {
+            for(int u = live.find_first(); u >= 0; u = live.find_next(u))
+                addInterference(copies[c], u, types, interferes);
+            for(unsigned int d = c + 1; d < copies.size(); d++)
+                addInterference(copies[c], copies[d], types, interferes);
+        }
+        
+        for(BasicBlock::const_iterator i = block->end();
+            i != block->begin(); ) {
+            i--;
+            if(isa<PHINode>(i))
+                break;
+            if(valueNums.count(i)) {
+                unsigned int v = valueNums[i];
+                live.reset(v);
+                for(int u = live.find_first(); u >= 0; u = live.find_next(u))
+                    addInterference(v, u, types, interferes);
+            }
+            for(unsigned int j = 0, je = i->getNumOperands(); j < je; j++)
+                addLiveValue(i->getOperand(j), live, valueNums);
+        }
+    }
+    
+    // greedily assign each value the first local variable of its type not
+    // held by an interfering value
+    std::map<char, std::vector<unsigned int> > typeVars;
+    std::vector<int> varNums(n, -1);
+    DenseSet<unsigned int> initialised;
+    for(unsigned int v = 0; v < n; v++) {
+        DenseSet<unsigned int> taken;
+        for(unsigned int j = 0; j < interferes[v].size(); j++)
+            if(varNums[interferes[v][j]] >= 0)
+                taken.insert(varNums[interferes[v][j]]);
+        std::vector<unsigned int> &vars = typeVars[types[v]];
+        unsigned int varNum = 0;
+        bool found = false;
+        for(unsigned int j = 0; j < vars.size() && !found; j++)
+            if(!taken.count(vars[j])) {
+                varNum = vars[j];
+                found = true;
+            }
+        if(!found) {
+            varNum = usedRegisters++;
+            if(types[v] == 'J' || types[v] == 'D')
+                usedRegisters++;
+            vars.push_back(varNum);
+        }
+        varNums[v] = varNum;
+        localVars[values[v]] = varNum;
+        
+        const PHINode *phi = dyn_cast<PHINode>(values[v]);
+        if(!phi || initialised.count(varNum))
+            continue;
+        for(unsigned int j = 0, je = phi->getNumIncomingValues(); j < je; j++)
+            if(isa<UndefValue>(phi->getIncomingValue(j))) {
+                const Type *ty = phi->getType();
+                printSimpleInstruction(getTypePrefix(ty, true) + "const_0");
+                printSimpleInstruction(getTypePrefix(ty, true) + "store",
+                                       utostr(varNum));
+                initialised.insert(varNum);
+                break;
+            }
+    }
+}
@@ -42,6 +42,11 @@ static cl::opt<std::string> input(
 static cl::opt<std::string> classname(
     "classname", cl::desc("Binary name of the generated class"));
 
+static cl::opt<unsigned int> maxMethodSize(
+    "max-method-size", cl::init(8000),
+    cl::desc("Estimated bytecode size above which functions are split into "
+             "several methods, or 0 to never split them (default 8000)"));
+
 enum DebugLevel {g0 = 0, g1 = 1, g2 = 2, g3 = 3};
 cl::opt<DebugLevel> debugLevel(cl::desc("Debugging level:"), cl::init(g1),
     cl::values(
@@ -75,9 +80,8 @@ int main(int argc, char **argv) {
     pm.add(new TargetData(td));
     pm.add(createVerifierPass());
     pm.add(createGCLoweringPass());
-    // TODO: fix switch generation so the following pass is not needed
-    pm.add(createLowerSwitchPass());
     pm.add(createCFGSimplificationPass());
+    pm.add(new MethodSplitter(maxMethodSize));
     pm.add(new JVMWriter(&td, fouts(), classname, debugLevel));
     pm.add(createGCInfoDeleter());
     pm.run(*mod);
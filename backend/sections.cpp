@@ -22,6 +22,44 @@
 
 #include "backend.h"
 
+#include <algorithm>
+
+/**
+ * Find the global variables to be held in static fields of their own type,
+ * rather than in the data segment. These are integer, floating point and
+ * pointer variables private to the module, whose address is only used to
+ * load from or store to them.
+ */
+void JVMWriter::findScalarGlobals() {
+    scalarGlobals.clear();
+    for(Module::global_iterator i = module->global_begin(),
+                                e = module->global_end(); i != e; i++) {
+        if(i->isDeclaration() || !i->hasLocalLinkage())
+            continue;
+        const Type *ty = i->getType()->getElementType();
+        if(const IntegerType *intTy = dyn_cast<IntegerType>(ty)) {
+            unsigned int bitWidth = intTy->getBitWidth();
+            if(bitWidth != 1 && bitWidth != 8 && bitWidth != 16
+            && bitWidth != 32 && bitWidth != 64)
+                continue;
+        } else if(!ty->isFloatTy() && !ty->isDoubleTy()
+               && !isa<PointerType>(ty))
+            continue;
+        bool scalar = true;
+        for(Value::use_const_iterator u = i->use_begin(), ue = i->use_end();
+            u != ue && scalar; u++) {
+            if(isa<LoadInst>(*u))
+                continue;
+            if(const StoreInst *store = dyn_cast<StoreInst>(*u))
+                if(store->getOperand(1) == i && store->getOperand(0) != i)
+                    continue;
+            scalar = false;
+        }
+        if(scalar)
+            scalarGlobals.insert(i);
+    }
+}
+
 /**
  * Print the header.
  */
@@ -39,19 +77,33 @@ void JVMWriter::printFields() {
     out << "; Fields\n";
     for(Module::global_iterator i = module->global_begin(),
                                 e = module->global_end(); i != e; i++) {
-        if(i->isDeclaration()) {
-            out << ".extern field ";
-            externRefs.insert(i);
-        } else
-            out << ".field "
-                << (i->hasLocalLinkage() ? "private " : "public ")
-                << "static final ";
-        out << getValueName(i) << ' ' << getTypeDescriptor(i->getType());
+        if(scalarGlobals.count(i)) {
+            // holds the value of the variable rather than its address
+            out << ".field private static " << getValueName(i) << ' '
+                << getTypeDescriptor(i->getType()->getElementType());
+        } else {
+            if(i->isDeclaration()) {
+                out << ".extern field ";
+                externRefs.insert(i);
+            } else
+                out << ".field "
+                    << (i->hasLocalLinkage() ? "private " : "public ")
+                    << "static final ";
+            out << getValueName(i) << ' '
+                << getTypeDescriptor(i->getType());
+        }
         if(debug >= 3)
             out << " ; " << *i;
         else
             out << '\n';
     }
+    for(Module::const_iterator i = module->begin(),
+                               e = module->end(); i != e; i++)
+        if(i->hasAddressTaken())
+            out << ".field private static fp$" << getValueName(i) << " I\n";
+    for(unsigned int i = 0, e = callSites.size(); i < e; i++)
+        out << ".field private static final ic$" << i
+            << " Ljava/lang/invoke/MethodHandle;\n";
     out << '\n';
 }
 
@@ -89,39 +141,140 @@ void JVMWriter::printConstructor() {
 }
 
 /**
- * Print the static class initialization method.
+ * Print the given part of an image of the data segment as a string constant,
+ * one character for each byte.
+ * 
+ * @param image  the image
+ * @param begin  the offset of the first byte to print
+ * @param end    the offset following the last byte to print
+ */
+void JVMWriter::printDataImage(const std::vector<unsigned char> &image,
+                               uint64_t begin, uint64_t end) {
+    out << "\tldc \"";
+    for(uint64_t i = begin; i < end; i++) {
+        const unsigned char c = image[i];
+        if(c >= ' ' && c <= '~' && c != '"' && c != '\\' && c != '\'')
+            out << c;
+        else
+            out << "\\u00" << hexdigit((c>>4) & 0xf) << hexdigit(c & 0xf);
+    }
+    out << "\"\n";
+}
+
+/**
+ * Print the static class initialization method. The global variables are
+ * allocated as a single block of the data segment, which is initialised
+ * from an image of the block held in string constants. The values in the
+ * block only known at runtime, such as addresses, are then stored
+ * individually.
  */
 void JVMWriter::printClInit() {
+    std::vector<const GlobalVariable*> globals;
+    std::vector<uint64_t> offsets;
+    uint64_t size = 0;
+    for(Module::global_iterator i = module->global_begin(),
+                                e = module->global_end(); i != e; i++) {
+        if(!i->isDeclaration() && !scalarGlobals.count(i)) {
+            // align each global variable as the runtime aligns blocks of
+            // the data segment
+            globals.push_back(i);
+            offsets.push_back(size);
+            size += targetData->getTypeAllocSize(
+                i->getInitializer()->getType());
+            size = (size + 7) & ~(uint64_t) 7;
+        }
+    }
+    
+    std::vector<unsigned char> image(size);
+    std::vector<std::pair<uint64_t, const Constant*> > relocations;
+    for(unsigned int i = 0; i < globals.size(); i++)
+        addStaticConstant(globals[i]->getInitializer(), image, offsets[i],
+                          relocations);
+    unsigned int stackSize = 4;
+    for(unsigned int i = 0; i < relocations.size(); i++)
+        stackSize = std::max(stackSize,
+                             3 + getStackSize(relocations[i].second));
+    for(Module::global_iterator i = module->global_begin(),
+                                e = module->global_end(); i != e; i++)
+        if(scalarGlobals.count(i))
+            stackSize = std::max(stackSize,
+                                 getStackSize(i->getInitializer()));
+    
     out << ".method public <clinit>()V\n";
-    printSimpleInstruction(".limit stack 4");
+    printSimpleInstruction(".limit stack", utostr(stackSize));
     
     out << "\n\t; allocate global variables\n";
-    for(Module::global_iterator i = module->global_begin(),
-                                e = module->global_end(); i != e; i++) {
-        if(!i->isDeclaration()) {
-            const GlobalVariable *g = i;
-            const Constant *c = g->getInitializer();
-            printConstLoad(
-                APInt(32, targetData->getTypeAllocSize(c->getType()), false));
-            printSimpleInstruction("invokestatic",
-                                   "lljvm/runtime/Memory/allocateData(I)I");
-            printSimpleInstruction("putstatic",
-                classname + "/" + getValueName(g) + " I");
+    printPtrLoad(size);
+    printSimpleInstruction("invokestatic",
+                           "lljvm/runtime/Memory/allocateData(I)I");
+    for(unsigned int i = 0; i < globals.size(); i++) {
+        printSimpleInstruction("dup");
+        if(offsets[i] > 0) {
+            printPtrLoad(offsets[i]);
+            printSimpleInstruction("iadd");
         }
+        printSimpleInstruction("putstatic",
+            classname + "/" + getValueName(globals[i]) + " I");
     }
     
     out << "\n\t; initialise global variables\n";
+    // the data segment is initially zero, so only runs of non-zero bytes
+    // are stored, in pieces small enough for the constant pool
+    const uint64_t maxGap = 32, maxPiece = 16384;
+    for(uint64_t begin = 0; begin < size; ) {
+        if(image[begin] == 0) {
+            begin++;
+            continue;
+        }
+        uint64_t end = begin, gap = 0;
+        while(end < size && end - begin < maxPiece && gap < maxGap)
+            gap = image[end++] ? 0 : gap + 1;
+        end -= gap;
+        printSimpleInstruction("dup");
+        printPtrLoad(begin);
+        printDataImage(image, begin, end);
+        printSimpleInstruction("invokestatic",
+            "lljvm/runtime/Memory/storeImage(IILjava/lang/String;)V");
+        begin = end;
+    }
+    for(unsigned int i = 0; i < relocations.size(); i++)
+        printRelocation(relocations[i].first, relocations[i].second);
+    printSimpleInstruction("pop");
+    
+    // variables held in static fields are zero unless initialised here
     for(Module::global_iterator i = module->global_begin(),
                                 e = module->global_end(); i != e; i++) {
-        if(!i->isDeclaration()) {
-            const GlobalVariable *g = i;
-            const Constant *c = g->getInitializer();
-            printSimpleInstruction("getstatic",
-                classname + "/" + getValueName(g) + " I");
-            printStaticConstant(c);
-            printSimpleInstruction("pop");
-            out << '\n';
-        }
+        if(!scalarGlobals.count(i))
+            continue;
+        const Constant *c = i->getInitializer();
+        if(c->isNullValue() || isa<UndefValue>(c))
+            continue;
+        if(const ConstantExpr *ce = dyn_cast<ConstantExpr>(c))
+            printConstantExpr(ce);
+        else if(isa<GlobalValue>(c))
+            printValueLoad(c);
+        else
+            printConstLoad(c);
+        printSimpleInstruction("putstatic", classname + "/"
+            + getValueName(i) + ' ' + getTypeDescriptor(c->getType()));
+    }
+    
+    out << "\n\t; create inline caches for indirect call sites\n";
+    for(DenseMap<const Instruction*, unsigned int>::const_iterator
+            i = callSites.begin(), e = callSites.end(); i != e; i++) {
+        const Instruction *inst = i->first;
+        const FunctionType *ty = cast<FunctionType>(
+            cast<PointerType>(inst->getOperand(0)->getType())
+                ->getElementType());
+        printSimpleInstruction("ldc", '"' + getCallSignature(ty) + '"');
+        printSimpleInstruction("ldc", '"' + classname + "/"
+            + getValueName(inst->getParent()->getParent()) + '"');
+        printSimpleInstruction("invokestatic",
+            "lljvm/runtime/InlineCache/create"
+            "(Ljava/lang/String;Ljava/lang/String;)"
+            "Ljava/lang/invoke/MethodHandle;");
+        printSimpleInstruction("putstatic", classname + "/ic$"
+            + utostr(i->second) + " Ljava/lang/invoke/MethodHandle;");
     }
     
     printSimpleInstruction("return");
@@ -159,7 +312,13 @@ void JVMWriter::printMainMethod() {
         llvm_unreachable("main function has invalid number of arguments");
     }
 
-    printSimpleInstruction("invokestatic", "lljvm/lib/c/exit(I)V");
+    // programs linked with the bitcode of libc have their own copy of exit
+    const Function *exit = module->getFunction("exit");
+    if(exit && !exit->isDeclaration())
+        printSimpleInstruction("invokestatic",
+                               classname + "/" + getValueName(exit) + "(I)V");
+    else
+        printSimpleInstruction("invokestatic", "lljvm/lib/c/exit(I)V");
     printSimpleInstruction("return");
     out << ".end method\n";
 }
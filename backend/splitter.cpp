@@ -0,0 +1,309 @@
+/*
+* Copyright (c) 2009 David Roberts <d@vidr.cc>
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+*/
+
+#include "backend.h"
+
+#include <algorithm>
+#include <set>
+#include <llvm/Analysis/Dominators.h>
+#include <llvm/Transforms/Utils/FunctionUtils.h>
+
+char MethodSplitter::id = 0;
+
+/**
+ * Construct a new MethodSplitter.
+ * 
+ * @param maxSize  the estimated size in bytes above which the code of a
+ *                 function is split into separate methods
+ */
+MethodSplitter::MethodSplitter(unsigned int maxSize)
+    : ModulePass(&id), maxSize(maxSize) {}
+
+/**
+ * Estimate the size in bytes of the code generated for the given block. Each
+ * instruction loads its operands, operates on them, and stores the result.
+ * 
+ * @param block  the block
+ * @return       the estimated size
+ */
+static unsigned int getCodeSize(const BasicBlock *block) {
+    unsigned int size = 0;
+    for(BasicBlock::const_iterator i = block->begin(), e = block->end();
+        i != e; i++) {
+        size += 4 + 3 * i->getNumOperands();
+        if(const SwitchInst *inst = dyn_cast<SwitchInst>(i))
+            size += 8 * inst->getNumCases();
+    }
+    return size;
+}
+
+/**
+ * Estimate the size in bytes of the code generated for the given function.
+ * 
+ * @param f  the function
+ * @return   the estimated size
+ */
+static unsigned int getCodeSize(const Function &f) {
+    unsigned int size = 0;
+    for(Function::const_iterator i = f.begin(), e = f.end(); i != e; i++)
+        size += getCodeSize(i);
+    return size;
+}
+
+/**
+ * Determine whether the given block ends the function. Such blocks are left
+ * in the function rather than being moved to a separate method, as they
+ * return from or unwind the function itself.
+ * 
+ * @param block  the block
+ * @return       true if the block returns or unwinds
+ */
+static bool isFunctionExit(const BasicBlock *block) {
+    return isa<ReturnInst>(block->getTerminator())
+        || isa<UnwindInst>(block->getTerminator());
+}
+
+/**
+ * Determine whether the given block can be moved to a separate method. Stack
+ * allocations would be freed when the method returns, setjmp would return
+ * to the method, varargs refer to those of the original function, and
+ * invoke instructions may branch out of the method on an exception.
+ * 
+ * @param block  the block
+ * @return       true if the block can be moved
+ */
+static bool isMovable(const BasicBlock *block) {
+    for(BasicBlock::const_iterator i = block->begin(), e = block->end();
+        i != e; i++) {
+        if(isa<AllocaInst>(i) || isa<InvokeInst>(i) || isa<VAArgInst>(i))
+            return false;
+        if(const CallInst *inst = dyn_cast<CallInst>(i))
+            if(const Function *f = inst->getCalledFunction())
+                if(f->getIntrinsicID() == Intrinsic::vastart
+                || f->getName() == "setjmp")
+                    return false;
+    }
+    return true;
+}
+
+/**
+ * Split any block of the given function larger than half the maximum size
+ * into smaller blocks, so that it can be divided into regions.
+ * 
+ * @param f  the function
+ */
+void MethodSplitter::splitBlocks(Function &f) {
+    for(Function::iterator b = f.begin(); b != f.end(); b++) {
+        if(getCodeSize(b) <= maxSize / 2)
+            continue;
+        unsigned int size = 0;
+        for(BasicBlock::iterator i = b->begin(); !isa<TerminatorInst>(i);
+            i++) {
+            size += 4 + 3 * i->getNumOperands();
+            if(size > maxSize / 4 && !isa<PHINode>(i)) {
+                // continue with the new block on the next iteration
+                b->splitBasicBlock(i, b->getName() + ".split");
+                break;
+            }
+        }
+    }
+}
+
+/**
+ * Find the sizes of the regions dominated by each block.
+ * 
+ * @param node   the dominator tree node of the block
+ * @param sizes  set to the size of the region of each block
+ * @return       the size of the region of the block
+ */
+static unsigned int getRegionSizes(DomTreeNode *node,
+        std::map<BasicBlock*, unsigned int> &sizes) {
+    unsigned int size = 0;
+    BasicBlock *block = node->getBlock();
+    if(!isFunctionExit(block))
+        size += getCodeSize(block);
+    for(DomTreeNode::iterator i = node->begin(), e = node->end(); i != e; i++)
+        size += getRegionSizes(*i, sizes);
+    return sizes[block] = size;
+}
+
+/**
+ * Collect the blocks of the region dominated by the given block, other than
+ * those that end the function.
+ * 
+ * @param node    the dominator tree node of the block
+ * @param region  the blocks of the region
+ * @return        true if every block of the region can be moved
+ */
+static bool getRegion(DomTreeNode *node, std::vector<BasicBlock*> &region) {
+    BasicBlock *block = node->getBlock();
+    if(!isFunctionExit(block)) {
+        if(!isMovable(block))
+            return false;
+        region.push_back(block);
+    }
+    for(DomTreeNode::iterator i = node->begin(), e = node->end(); i != e; i++)
+        if(!getRegion(*i, region))
+            return false;
+    return true;
+}
+
+/**
+ * Count the values that would be passed into or out of a method containing
+ * the given region.
+ * 
+ * @param region  the blocks of the region
+ * @return        the number of values
+ */
+static unsigned int countLiveValues(const std::vector<BasicBlock*> &region) {
+    std::set<const BasicBlock*> blocks(region.begin(), region.end());
+    std::set<const Value*> values;
+    for(unsigned int b = 0; b < region.size(); b++)
+        for(BasicBlock::const_iterator i = region[b]->begin(),
+            e = region[b]->end(); i != e; i++) {
+            for(unsigned int j = 0, je = i->getNumOperands(); j < je; j++) {
+                const Value *v = i->getOperand(j);
+                if(isa<Argument>(v) || (isa<Instruction>(v)
+                && !blocks.count(cast<Instruction>(v)->getParent())))
+                    values.insert(v);
+            }
+            for(Value::use_const_iterator u = i->use_begin(),
+                ue = i->use_end(); u != ue; u++)
+                if(!blocks.count(cast<Instruction>(*u)->getParent()))
+                    values.insert(i);
+        }
+    return values.size();
+}
+
+/**
+ * Split each edge leaving the given region for a block containing phi
+ * instructions, so that the values of the phi instructions are chosen
+ * outside the region.
+ * 
+ * @param region  the blocks of the region
+ */
+static void splitExitEdges(const std::vector<BasicBlock*> &region) {
+    std::set<BasicBlock*> blocks(region.begin(), region.end());
+    for(unsigned int b = 0; b < region.size(); b++) {
+        BasicBlock *block = region[b];
+        TerminatorInst *term = block->getTerminator();
+        std::map<BasicBlock*, BasicBlock*> edges;
+        for(unsigned int s = 0, se = term->getNumSuccessors(); s < se; s++) {
+            BasicBlock *dest = term->getSuccessor(s);
+            if(blocks.count(dest) || !isa<PHINode>(dest->begin()))
+                continue;
+            BasicBlock *&edge = edges[dest];
+            if(!edge) {
+                edge = BasicBlock::Create(block->getContext(),
+                    block->getName() + ".exit", block->getParent(), dest);
+                BranchInst::Create(dest, edge);
+                for(BasicBlock::iterator i = dest->begin();
+                    isa<PHINode>(i); i++) {
+                    // the phi instruction has an incoming value for each
+                    // edge from the block, which now all enter the new block
+                    PHINode *phi = cast<PHINode>(i);
+                    int index = phi->getBasicBlockIndex(block);
+                    phi->setIncomingBlock(index, edge);
+                    while((index = phi->getBasicBlockIndex(block)) >= 0)
+                        phi->removeIncomingValue(index, false);
+                }
+            }
+            term->setSuccessor(s, edge);
+        }
+    }
+}
+
+/**
+ * Compare regions by decreasing size.
+ * 
+ * @param a  the size and entry block of the first region
+ * @param b  the size and entry block of the second region
+ * @return   true if the first region is larger than the second
+ */
+static bool isLarger(const std::pair<unsigned int, BasicBlock*> &a,
+                     const std::pair<unsigned int, BasicBlock*> &b) {
+    return a.first > b.first;
+}
+
+/**
+ * Move regions of the given function to separate methods until its size is
+ * no more than the maximum, choosing the largest region that fits within
+ * the maximum each time. A region consists of the blocks dominated by its
+ * entry block, so the only branches into it are to its entry.
+ * 
+ * @param f  the function
+ */
+void MethodSplitter::splitFunction(Function &f) {
+    splitBlocks(f);
+    while(getCodeSize(f) > maxSize) {
+        DominatorTree dt;
+        dt.runOnFunction(f);
+        std::map<BasicBlock*, unsigned int> sizes;
+        getRegionSizes(dt.getRootNode(), sizes);
+        
+        std::vector<std::pair<unsigned int, BasicBlock*> > candidates;
+        for(Function::iterator i = f.begin(), e = f.end(); i != e; i++) {
+            if(i == f.begin() || !sizes.count(i) || isFunctionExit(i))
+                continue;
+            // moving a small region would cost as much as it saves
+            unsigned int size = sizes[i];
+            if(size <= maxSize && size >= maxSize / 16)
+                candidates.push_back(std::make_pair(size, (BasicBlock*) i));
+        }
+        std::stable_sort(candidates.begin(), candidates.end(), isLarger);
+        
+        std::vector<BasicBlock*> region;
+        for(unsigned int i = 0; i < candidates.size(); i++) {
+            // JVM methods have at most 255 words of arguments
+            if(getRegion(dt.getNode(candidates[i].second), region)
+            && countLiveValues(region) <= 64)
+                break;
+            region.clear();
+        }
+        if(region.empty())
+            break;
+        
+        splitExitEdges(region);
+        dt.runOnFunction(f);
+        if(!ExtractCodeRegion(dt, region))
+            break;
+    }
+}
+
+/**
+ * Split the functions of the given module whose code is larger than the
+ * maximum size.
+ * 
+ * @param m  the module
+ * @return   whether the module was modified
+ */
+bool MethodSplitter::runOnModule(Module &m) {
+    if(maxSize == 0)
+        return false;
+    std::vector<Function*> functions;
+    for(Module::iterator i = m.begin(), e = m.end(); i != e; i++)
+        if(!i->isDeclaration() && getCodeSize(*i) > maxSize)
+            functions.push_back(i);
+    for(unsigned int i = 0; i < functions.size(); i++)
+        splitFunction(*functions[i]);
+    return !functions.empty();
+}
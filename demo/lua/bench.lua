@@ -0,0 +1,27 @@
+-- Allocation-heavy benchmark
+
+local function fib(n)
+    if n < 2 then
+        return n
+    else
+        return fib(n - 1) + fib(n - 2)
+    end
+end
+
+local t = {}
+for i = 1, 200000 do
+    t[i] = { i, tostring(i) }
+end
+local sum = 0
+for i = 1, #t do
+    sum = sum + t[i][1] + #t[i][2]
+end
+
+local parts = {}
+for i = 1, 50000 do
+    parts[#parts + 1] = string.format("%d:%d", i, i * 3)
+end
+local s = table.concat(parts, ",")
+
+assert(sum == 20001188895 and #s == 601858 and fib(24) == 46368)
+print("OK")
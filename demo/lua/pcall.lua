@@ -0,0 +1,32 @@
+-- Protected call benchmark: every pcall is a setjmp, and every error a longjmp
+
+local function fail(i)
+    error(i)
+end
+
+local function succeed(i)
+    return i
+end
+
+local start = os.clock()
+local caught = 0
+for i = 1, 200000 do
+    local ok, err = pcall(fail, i)
+    if not ok then
+        caught = caught + 1
+    end
+end
+local errors = os.clock() - start
+
+start = os.clock()
+local sum = 0
+for i = 1, 200000 do
+    local ok, v = pcall(succeed, i)
+    sum = sum + v
+end
+local calls = os.clock() - start
+
+assert(caught == 200000 and sum == 20000100000)
+print(string.format("pcall with error: %.2f us", errors / 200000 * 1e6))
+print(string.format("pcall without error: %.2f us", calls / 200000 * 1e6))
+print("OK")
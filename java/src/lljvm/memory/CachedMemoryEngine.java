@@ -0,0 +1,205 @@
+/*
+* Copyright (c) 2009 David Roberts <d@vidr.cc>
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+*/
+
+package lljvm.memory;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A paged memory engine which remembers the page most recently loaded from
+ * and the page most recently stored to, so that a run of accesses to the
+ * same page skips the page table lookup and the unmapped page check.
+ * 
+ * <p>Loads and stores are cached separately, so a loop copying from one
+ * buffer to another hits the cache on both sides. Only pages with their own
+ * buffer are cached for stores, so a cached store never needs to check for
+ * the shared zero page.</p>
+ * 
+ * @author  David Roberts
+ */
+public class CachedMemoryEngine extends PagedMemoryEngine {
+    /** log2 of the page size */
+    private final int pageShift;
+    /** Mask selecting the offset within a page */
+    private final int offsetMask;
+    
+    /** Page number of the cached load page, or -1 if there is none */
+    private int loadTag = -1;
+    /** The page most recently loaded from */
+    private ByteBuffer loadPage;
+    /** Page number of the cached store page, or -1 if there is none */
+    private int storeTag = -1;
+    /** The page most recently stored to */
+    private ByteBuffer storePage;
+    
+    /**
+     * Construct a new cached engine with the default page size.
+     * 
+     * @param size  the size of the address space in bytes
+     */
+    public CachedMemoryEngine(int size) {
+        this(size, DEFAULT_PAGE_SHIFT);
+    }
+    
+    /**
+     * Construct a new cached engine.
+     * 
+     * @param size       the size of the address space in bytes. Must be a
+     *                   multiple of the page size.
+     * @param pageShift  log2 of the page size
+     */
+    public CachedMemoryEngine(int size, int pageShift) {
+        super(size, pageShift);
+        this.pageShift = pageShift;
+        this.offsetMask = (1<<pageShift) - 1;
+    }
+    
+    public String getName() {
+        return "cached";
+    }
+    
+    /**
+     * Forget the cached pages.
+     */
+    private void invalidate() {
+        loadTag = storeTag = -1;
+        loadPage = storePage = null;
+    }
+    
+    /**
+     * Return the page of the given virtual memory address for a load,
+     * looking it up in the page table and caching it.
+     * 
+     * @param addr  the virtual memory address
+     * @return      the page of the given virtual memory address
+     */
+    private ByteBuffer loadMiss(int addr) {
+        final ByteBuffer page = getMappedPage(addr);
+        loadTag = addr>>>pageShift;
+        return loadPage = page;
+    }
+    
+    /**
+     * Return the page of the given virtual memory address for a store,
+     * looking it up in the page table and caching it. The page is also
+     * cached for loads, since it may previously have been cached as the
+     * zero page.
+     * 
+     * @param addr  the virtual memory address
+     * @return      the writable page of the given virtual memory address
+     */
+    private ByteBuffer storeMiss(int addr) {
+        final ByteBuffer page = getWritablePage(addr);
+        loadTag = storeTag = addr>>>pageShift;
+        return loadPage = storePage = page;
+    }
+    
+    /**
+     * Return the page of the given virtual memory address for a load.
+     * 
+     * @param addr  the virtual memory address
+     * @return      the page of the given virtual memory address
+     */
+    private ByteBuffer loadPage(int addr) {
+        return addr>>>pageShift == loadTag ? loadPage : loadMiss(addr);
+    }
+    
+    /**
+     * Return the page of the given virtual memory address for a store.
+     * 
+     * @param addr  the virtual memory address
+     * @return      the writable page of the given virtual memory address
+     */
+    private ByteBuffer storePage(int addr) {
+        return addr>>>pageShift == storeTag ? storePage : storeMiss(addr);
+    }
+    
+    public void unmap(int addr, int len) {
+        super.unmap(addr, len);
+        invalidate();
+    }
+    
+    public void store(int addr, byte value) {
+        storePage(addr).put(addr & offsetMask, value);
+    }
+    
+    public void store(int addr, short value) {
+        storePage(addr).putShort(addr & offsetMask, value);
+    }
+    
+    public void store(int addr, int value) {
+        storePage(addr).putInt(addr & offsetMask, value);
+    }
+    
+    public void store(int addr, long value) {
+        storePage(addr).putLong(addr & offsetMask, value);
+    }
+    
+    public void store(int addr, float value) {
+        storePage(addr).putFloat(addr & offsetMask, value);
+    }
+    
+    public void store(int addr, double value) {
+        storePage(addr).putDouble(addr & offsetMask, value);
+    }
+    
+    public byte load_i8(int addr) {
+        return loadPage(addr).get(addr & offsetMask);
+    }
+    
+    public short load_i16(int addr) {
+        return loadPage(addr).getShort(addr & offsetMask);
+    }
+    
+    public int load_i32(int addr) {
+        return loadPage(addr).getInt(addr & offsetMask);
+    }
+    
+    public long load_i64(int addr) {
+        return loadPage(addr).getLong(addr & offsetMask);
+    }
+    
+    public float load_f32(int addr) {
+        return loadPage(addr).getFloat(addr & offsetMask);
+    }
+    
+    public double load_f64(int addr) {
+        return loadPage(addr).getDouble(addr & offsetMask);
+    }
+    
+    public void store(int addr, byte[] bytes, int offset, int len) {
+        super.store(addr, bytes, offset, len);
+        invalidate();
+    }
+    
+    public void copy(int dest, int src, int len, int align) {
+        super.copy(dest, src, len, align);
+        // the copy may have given pages cached as zero their own buffers,
+        // as may bulk stores and fills
+        invalidate();
+    }
+    
+    public void fill(int dest, byte val, int len, int align) {
+        super.fill(dest, val, len, align);
+        invalidate();
+    }
+}
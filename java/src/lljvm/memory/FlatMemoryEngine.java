@@ -0,0 +1,329 @@
+/*
+* Copyright (c) 2009 David Roberts <d@vidr.cc>
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+*/
+
+package lljvm.memory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import lljvm.runtime.Memory.SegmentationFault;
+
+/**
+ * A memory engine which backs the whole address space with a single
+ * contiguous buffer, so that each access is a single bounds-checked buffer
+ * access at the virtual address itself.
+ * 
+ * <p>The buffer is a private mapping of a sparse temporary file, so the
+ * operating system only commits memory for the pages that are actually
+ * touched. Mapped memory is tracked as a low region growing up from address
+ * zero (data and heap) and a high region growing down from the end of the
+ * address space (stack). Accessing an address in the gap between them, or
+ * outside of the address space, throws a SegmentationFault.</p>
+ * 
+ * @author  David Roberts
+ */
+public class FlatMemoryEngine implements MemoryEngine {
+    private static final ByteOrder ENDIANNESS = ByteOrder.LITTLE_ENDIAN;
+    
+    /** The buffer backing the address space */
+    private final ByteBuffer buf;
+    /** The size of the address space */
+    private final int size;
+    /** The end of the low mapped region */
+    private int lowEnd = 0;
+    /** The size of the unmapped gap following the low mapped region */
+    private int gap;
+    
+    /**
+     * Construct a new flat engine.
+     * 
+     * @param size  the size of the address space in bytes
+     */
+    public FlatMemoryEngine(int size) {
+        this.size = size;
+        this.gap = size;
+        this.buf = mapAnonymous(size).order(ENDIANNESS);
+    }
+    
+    public String getName() {
+        return "flat";
+    }
+    
+    /**
+     * Create a zero-filled buffer of the given size, which only occupies
+     * physical memory once it has been written to.
+     * 
+     * @param size  the size of the buffer
+     * @return      the new buffer
+     */
+    private static ByteBuffer mapAnonymous(int size) {
+        try {
+            final File file = File.createTempFile("lljvm", ".mem");
+            try {
+                final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                try {
+                    raf.setLength(size);
+                    // changes to a private mapping are never written back
+                    // to the file, so it may be deleted straight away
+                    return raf.getChannel().map(
+                            FileChannel.MapMode.PRIVATE, 0, size);
+                } finally {
+                    raf.close();
+                }
+            } finally {
+                file.delete();
+            }
+        } catch(IOException e) {
+            throw new RuntimeException(
+                    "Unable to map the flat memory region", e);
+        }
+    }
+    
+    /**
+     * Check that an access of the given width at the given address lies
+     * entirely within mapped memory.
+     * 
+     * @param addr   the virtual memory address
+     * @param width  the width of the access in bytes
+     * @return       addr
+     */
+    protected int check(int addr, int width) {
+        // [addr, addr+width) overlaps [lowEnd, lowEnd+gap) exactly when
+        // addr lies in [lowEnd-width+1, lowEnd+gap)
+        if(gap != 0 && Integer.compareUnsigned(
+                addr - lowEnd + width - 1, gap + width - 1) < 0)
+            throw new SegmentationFault(Math.max(addr, lowEnd));
+        return addr;
+    }
+    
+    /**
+     * Check that the given range of addresses has been mapped.
+     * 
+     * @param addr  the first address of the range
+     * @param len   the length of the range in bytes
+     */
+    protected void checkRange(int addr, int len) {
+        if(len <= 0)
+            return;
+        final int end = addr + len;
+        if(addr < 0 || end > size || end < 0)
+            throw new SegmentationFault(addr < 0 ? addr : end - 1);
+        final int highStart = lowEnd + gap;
+        if(addr < highStart && end > lowEnd)
+            throw new SegmentationFault(Math.max(addr, lowEnd));
+    }
+    
+    public void map(int addr, int len) {
+        if(len <= 0)
+            return;
+        final int end = addr + len;
+        int highStart = lowEnd + gap;
+        if(end >= highStart)
+            highStart = Math.min(highStart, Math.max(addr, lowEnd));
+        else if(addr <= lowEnd)
+            lowEnd = Math.max(lowEnd, end);
+        else
+            // a detached range, so the gap below it is mapped as well
+            lowEnd = end;
+        gap = highStart - lowEnd;
+    }
+    
+    public void unmap(int addr, int len) {
+        if(len <= 0)
+            return;
+        final int end = addr + len;
+        int highStart = lowEnd + gap;
+        // the buffer cannot be returned to the operating system, so just
+        // clear it in case the range is mapped again
+        PagedMemoryEngine.fillChunk(buf, Math.max(addr, 0), (byte) 0,
+                Math.min(end, size) - Math.max(addr, 0), 8);
+        if(addr < lowEnd && end >= lowEnd)
+            lowEnd = Math.max(addr, 0);
+        else if(addr <= highStart && end > highStart)
+            highStart = Math.min(end, size);
+        gap = highStart - lowEnd;
+    }
+    
+    public void store(int addr, byte value) {
+        try {
+            buf.put(check(addr, 1), value);
+        } catch(IndexOutOfBoundsException e) {
+            throw new SegmentationFault(addr);
+        }
+    }
+    
+    public void store(int addr, short value) {
+        try {
+            buf.putShort(check(addr, 2), value);
+        } catch(IndexOutOfBoundsException e) {
+            throw new SegmentationFault(addr);
+        }
+    }
+    
+    public void store(int addr, int value) {
+        try {
+            buf.putInt(check(addr, 4), value);
+        } catch(IndexOutOfBoundsException e) {
+            throw new SegmentationFault(addr);
+        }
+    }
+    
+    public void store(int addr, long value) {
+        try {
+            buf.putLong(check(addr, 8), value);
+        } catch(IndexOutOfBoundsException e) {
+            throw new SegmentationFault(addr);
+        }
+    }
+    
+    public void store(int addr, float value) {
+        try {
+            buf.putFloat(check(addr, 4), value);
+        } catch(IndexOutOfBoundsException e) {
+            throw new SegmentationFault(addr);
+        }
+    }
+    
+    public void store(int addr, double value) {
+        try {
+            buf.putDouble(check(addr, 8), value);
+        } catch(IndexOutOfBoundsException e) {
+            throw new SegmentationFault(addr);
+        }
+    }
+    
+    public byte load_i8(int addr) {
+        try {
+            return buf.get(check(addr, 1));
+        } catch(IndexOutOfBoundsException e) {
+            throw new SegmentationFault(addr);
+        }
+    }
+    
+    public short load_i16(int addr) {
+        try {
+            return buf.getShort(check(addr, 2));
+        } catch(IndexOutOfBoundsException e) {
+            throw new SegmentationFault(addr);
+        }
+    }
+    
+    public int load_i32(int addr) {
+        try {
+            return buf.getInt(check(addr, 4));
+        } catch(IndexOutOfBoundsException e) {
+            throw new SegmentationFault(addr);
+        }
+    }
+    
+    public long load_i64(int addr) {
+        try {
+            return buf.getLong(check(addr, 8));
+        } catch(IndexOutOfBoundsException e) {
+            throw new SegmentationFault(addr);
+        }
+    }
+    
+    public float load_f32(int addr) {
+        try {
+            return buf.getFloat(check(addr, 4));
+        } catch(IndexOutOfBoundsException e) {
+            throw new SegmentationFault(addr);
+        }
+    }
+    
+    public double load_f64(int addr) {
+        try {
+            return buf.getDouble(check(addr, 8));
+        } catch(IndexOutOfBoundsException e) {
+            throw new SegmentationFault(addr);
+        }
+    }
+    
+    public void store(int addr, byte[] bytes, int offset, int len) {
+        checkRange(addr, len);
+        if(len <= 0)
+            return;
+        try {
+            PagedMemoryEngine.at(buf, addr).put(bytes, offset, len);
+        } catch(IndexOutOfBoundsException e) {
+            throw new SegmentationFault(addr);
+        }
+    }
+    
+    public void load(int addr, byte[] bytes, int offset, int len) {
+        checkRange(addr, len);
+        if(len <= 0)
+            return;
+        try {
+            PagedMemoryEngine.at(buf, addr).get(bytes, offset, len);
+        } catch(IndexOutOfBoundsException e) {
+            throw new SegmentationFault(addr);
+        }
+    }
+    
+    public int strlen(int addr) {
+        // search to the end of the mapped region containing the string, and
+        // only beyond it if check allows
+        int end = Integer.compareUnsigned(check(addr, 1), lowEnd) < 0
+                ? lowEnd : size;
+        try {
+            int zero = PagedMemoryEngine.findZero(buf, addr, end);
+            if(zero < 0 && end < size) {
+                zero = PagedMemoryEngine.findZero(buf, check(end, 1), size);
+                end = size;
+            }
+            if(zero < 0)
+                throw new SegmentationFault(end);
+            return zero - addr;
+        } catch(IndexOutOfBoundsException e) {
+            throw new SegmentationFault(addr);
+        }
+    }
+    
+    public void copy(int dest, int src, int len, int align) {
+        checkRange(src, len);
+        checkRange(dest, len);
+        if(len <= 0)
+            return;
+        try {
+            PagedMemoryEngine.copyBuffer(buf, dest, buf, src, len);
+        } catch(IndexOutOfBoundsException e) {
+            throw new SegmentationFault(dest);
+        }
+    }
+    
+    public void fill(int dest, byte val, int len, int align) {
+        checkRange(dest, len);
+        if(len <= 0)
+            return;
+        try {
+            PagedMemoryEngine.fillChunk(buf, dest, val, len, align);
+        } catch(IndexOutOfBoundsException e) {
+            throw new SegmentationFault(dest);
+        }
+    }
+}
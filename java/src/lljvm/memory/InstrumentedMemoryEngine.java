@@ -0,0 +1,293 @@
+/*
+* Copyright (c) 2009 David Roberts <d@vidr.cc>
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+*/
+
+package lljvm.memory;
+
+import java.io.PrintStream;
+
+import lljvm.runtime.Memory.SegmentationFault;
+
+/**
+ * A memory engine which counts the accesses made to another engine. The
+ * counts are printed to standard error when the virtual machine exits.
+ * 
+ * @author  David Roberts
+ */
+public class InstrumentedMemoryEngine implements MemoryEngine {
+    /** The engine being instrumented */
+    private final MemoryEngine engine;
+    
+    /** Number of loads, indexed by log2 of the access size */
+    private final long[] loads = new long[4];
+    /** Number of stores, indexed by log2 of the access size */
+    private final long[] stores = new long[4];
+    /** Number of bulk loads */
+    private long bulkLoads;
+    /** Number of bytes loaded in bulk */
+    private long bytesLoaded;
+    /** Number of bulk stores */
+    private long bulkStores;
+    /** Number of bytes stored in bulk */
+    private long bytesStored;
+    /** Number of string length calculations */
+    private long strlens;
+    /** Number of copies */
+    private long copies;
+    /** Number of bytes copied */
+    private long bytesCopied;
+    /** Number of fills */
+    private long fills;
+    /** Number of bytes filled */
+    private long bytesFilled;
+    /** Number of bytes mapped */
+    private long bytesMapped;
+    /** Number of bytes unmapped */
+    private long bytesUnmapped;
+    /** Number of segmentation faults */
+    private long faults;
+    
+    /**
+     * Construct a new instrumented engine.
+     * 
+     * @param engine  the engine to instrument
+     */
+    public InstrumentedMemoryEngine(MemoryEngine engine) {
+        this.engine = engine;
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                printStatistics(System.err);
+            }
+        });
+    }
+    
+    public String getName() {
+        return "instrumented:" + engine.getName();
+    }
+    
+    /**
+     * Print the access counts to the given stream.
+     * 
+     * @param out  the stream to print to
+     */
+    public void printStatistics(PrintStream out) {
+        out.println("lljvm.memory: " + getName());
+        out.println(String.format("  %-8s %14s %14s %14s %14s",
+                "", "8-bit", "16-bit", "32-bit", "64-bit"));
+        out.println(String.format("  %-8s %14d %14d %14d %14d",
+                "loads", loads[0], loads[1], loads[2], loads[3]));
+        out.println(String.format("  %-8s %14d %14d %14d %14d",
+                "stores", stores[0], stores[1], stores[2], stores[3]));
+        out.println(String.format(
+                "  bulk loads %d (%d bytes), bulk stores %d (%d bytes)",
+                bulkLoads, bytesLoaded, bulkStores, bytesStored));
+        out.println(String.format("  strlen %d", strlens));
+        out.println(String.format("  copies %d (%d bytes), fills %d (%d bytes)",
+                copies, bytesCopied, fills, bytesFilled));
+        out.println(String.format("  mapped %d bytes, unmapped %d bytes",
+                bytesMapped, bytesUnmapped));
+        out.println(String.format("  %d segmentation faults", faults));
+    }
+    
+    public void map(int addr, int len) {
+        bytesMapped += len;
+        engine.map(addr, len);
+    }
+    
+    public void unmap(int addr, int len) {
+        bytesUnmapped += len;
+        engine.unmap(addr, len);
+    }
+    
+    public void store(int addr, byte value) {
+        stores[0]++;
+        try {
+            engine.store(addr, value);
+        } catch(SegmentationFault e) {
+            faults++;
+            throw e;
+        }
+    }
+    
+    public void store(int addr, short value) {
+        stores[1]++;
+        try {
+            engine.store(addr, value);
+        } catch(SegmentationFault e) {
+            faults++;
+            throw e;
+        }
+    }
+    
+    public void store(int addr, int value) {
+        stores[2]++;
+        try {
+            engine.store(addr, value);
+        } catch(SegmentationFault e) {
+            faults++;
+            throw e;
+        }
+    }
+    
+    public void store(int addr, long value) {
+        stores[3]++;
+        try {
+            engine.store(addr, value);
+        } catch(SegmentationFault e) {
+            faults++;
+            throw e;
+        }
+    }
+    
+    public void store(int addr, float value) {
+        stores[2]++;
+        try {
+            engine.store(addr, value);
+        } catch(SegmentationFault e) {
+            faults++;
+            throw e;
+        }
+    }
+    
+    public void store(int addr, double value) {
+        stores[3]++;
+        try {
+            engine.store(addr, value);
+        } catch(SegmentationFault e) {
+            faults++;
+            throw e;
+        }
+    }
+    
+    public byte load_i8(int addr) {
+        loads[0]++;
+        try {
+            return engine.load_i8(addr);
+        } catch(SegmentationFault e) {
+            faults++;
+            throw e;
+        }
+    }
+    
+    public short load_i16(int addr) {
+        loads[1]++;
+        try {
+            return engine.load_i16(addr);
+        } catch(SegmentationFault e) {
+            faults++;
+            throw e;
+        }
+    }
+    
+    public int load_i32(int addr) {
+        loads[2]++;
+        try {
+            return engine.load_i32(addr);
+        } catch(SegmentationFault e) {
+            faults++;
+            throw e;
+        }
+    }
+    
+    public long load_i64(int addr) {
+        loads[3]++;
+        try {
+            return engine.load_i64(addr);
+        } catch(SegmentationFault e) {
+            faults++;
+            throw e;
+        }
+    }
+    
+    public float load_f32(int addr) {
+        loads[2]++;
+        try {
+            return engine.load_f32(addr);
+        } catch(SegmentationFault e) {
+            faults++;
+            throw e;
+        }
+    }
+    
+    public double load_f64(int addr) {
+        loads[3]++;
+        try {
+            return engine.load_f64(addr);
+        } catch(SegmentationFault e) {
+            faults++;
+            throw e;
+        }
+    }
+    
+    public void store(int addr, byte[] bytes, int offset, int len) {
+        bulkStores++;
+        bytesStored += len;
+        try {
+            engine.store(addr, bytes, offset, len);
+        } catch(SegmentationFault e) {
+            faults++;
+            throw e;
+        }
+    }
+    
+    public void load(int addr, byte[] bytes, int offset, int len) {
+        bulkLoads++;
+        bytesLoaded += len;
+        try {
+            engine.load(addr, bytes, offset, len);
+        } catch(SegmentationFault e) {
+            faults++;
+            throw e;
+        }
+    }
+    
+    public int strlen(int addr) {
+        strlens++;
+        try {
+            return engine.strlen(addr);
+        } catch(SegmentationFault e) {
+            faults++;
+            throw e;
+        }
+    }
+    
+    public void copy(int dest, int src, int len, int align) {
+        copies++;
+        bytesCopied += len;
+        try {
+            engine.copy(dest, src, len, align);
+        } catch(SegmentationFault e) {
+            faults++;
+            throw e;
+        }
+    }
+    
+    public void fill(int dest, byte val, int len, int align) {
+        fills++;
+        bytesFilled += len;
+        try {
+            engine.fill(dest, val, len, align);
+        } catch(SegmentationFault e) {
+            faults++;
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+/*
+* Copyright (c) 2009 David Roberts <d@vidr.cc>
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+*/
+
+package lljvm.memory;
+
+/**
+ * An interface for the storage backing LLJVM virtual memory. The memory
+ * layout (data segment, heap and stack) is managed by
+ * {@link lljvm.runtime.Memory}, which delegates every access to an engine.
+ * 
+ * <p>Implementations must throw {@link lljvm.runtime.Memory.SegmentationFault}
+ * when an address outside of every mapped range is accessed.</p>
+ * 
+ * @author  David Roberts
+ */
+public interface MemoryEngine {
+    /**
+     * Returns the name of this engine.
+     * 
+     * @return  the name of this engine
+     */
+    public String getName();
+    
+    /**
+     * Make the given range of addresses accessible. Newly mapped memory is
+     * filled with zeros.
+     * 
+     * @param addr  the first address of the range
+     * @param len   the length of the range in bytes
+     */
+    public void map(int addr, int len);
+    
+    /**
+     * Make the given range of addresses inaccessible, releasing the memory
+     * backing it. Engines may keep partially covered pages mapped.
+     * 
+     * @param addr  the first address of the range
+     * @param len   the length of the range in bytes
+     */
+    public void unmap(int addr, int len);
+    
+    /**
+     * Store a byte at the given address.
+     * 
+     * @param addr   the address at which to store the value
+     * @param value  the value to be stored
+     */
+    public void store(int addr, byte value);
+    
+    /**
+     * Store a 16-bit integer at the given address.
+     * 
+     * @param addr   the address at which to store the value
+     * @param value  the value to be stored
+     */
+    public void store(int addr, short value);
+    
+    /**
+     * Store a 32-bit integer at the given address.
+     * 
+     * @param addr   the address at which to store the value
+     * @param value  the value to be stored
+     */
+    public void store(int addr, int value);
+    
+    /**
+     * Store a 64-bit integer at the given address.
+     * 
+     * @param addr   the address at which to store the value
+     * @param value  the value to be stored
+     */
+    public void store(int addr, long value);
+    
+    /**
+     * Store a single precision floating point number at the given address.
+     * 
+     * @param addr   the address at which to store the value
+     * @param value  the value to be stored
+     */
+    public void store(int addr, float value);
+    
+    /**
+     * Store a double precision floating point number at the given address.
+     * 
+     * @param addr   the address at which to store the value
+     * @param value  the value to be stored
+     */
+    public void store(int addr, double value);
+    
+    /**
+     * Load a byte from the given address.
+     * 
+     * @param addr  the address from which to load the value
+     * @return      the value at the given address
+     */
+    public byte load_i8(int addr);
+    
+    /**
+     * Load a 16-bit integer from the given address.
+     * 
+     * @param addr  the address from which to load the value
+     * @return      the value at the given address
+     */
+    public short load_i16(int addr);
+    
+    /**
+     * Load a 32-bit integer from the given address.
+     * 
+     * @param addr  the address from which to load the value
+     * @return      the value at the given address
+     */
+    public int load_i32(int addr);
+    
+    /**
+     * Load a 64-bit integer from the given address.
+     * 
+     * @param addr  the address from which to load the value
+     * @return      the value at the given address
+     */
+    public long load_i64(int addr);
+    
+    /**
+     * Load a single precision floating point number from the given address.
+     * 
+     * @param addr  the address from which to load the value
+     * @return      the value at the given address
+     */
+    public float load_f32(int addr);
+    
+    /**
+     * Load a double precision floating point number from the given address.
+     * 
+     * @param addr  the address from which to load the value
+     * @return      the value at the given address
+     */
+    public double load_f64(int addr);
+    
+    /**
+     * Store len bytes of the given array, starting at the given offset within
+     * the array, at the given address.
+     * 
+     * @param addr    the address at which to store the bytes
+     * @param bytes   the array of bytes
+     * @param offset  the offset within the array of the first byte to store
+     * @param len     the number of bytes to store
+     */
+    public void store(int addr, byte[] bytes, int offset, int len);
+    
+    /**
+     * Load len bytes from the given address into the given array, starting at
+     * the given offset within the array.
+     * 
+     * @param addr    the address from which to load the bytes
+     * @param bytes   the array of bytes
+     * @param offset  the offset within the array of the first byte to load
+     * @param len     the number of bytes to load
+     */
+    public void load(int addr, byte[] bytes, int offset, int len);
+    
+    /**
+     * Returns the length of the null-terminated string at the given address.
+     * 
+     * @param addr  the address of the string
+     * @return      the number of bytes preceding the null terminator
+     */
+    public int strlen(int addr);
+    
+    /**
+     * Copy len bytes from memory area src to memory area dest. The memory
+     * areas may overlap, in which case the copy behaves as if the bytes were
+     * first copied to a temporary buffer.
+     * 
+     * @param dest   the destination memory area
+     * @param src    the source memory area
+     * @param len    the number of bytes to copy
+     * @param align  the alignment of the source and destination pointers,
+     *               unless align is equal to 0 or 1
+     */
+    public void copy(int dest, int src, int len, int align);
+    
+    /**
+     * Fill the first len bytes of memory area dest with the constant byte val.
+     * 
+     * @param dest   the destination memory area
+     * @param val    the constant byte fill value
+     * @param len    the number of bytes to set
+     * @param align  the alignment of the destination pointer, unless align is
+     *               equal to 0 or 1
+     */
+    public void fill(int dest, byte val, int len, int align);
+}
@@ -0,0 +1,221 @@
+/*
+* Copyright (c) 2009 David Roberts <d@vidr.cc>
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+*/
+
+package lljvm.memory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * The layout of the LLJVM virtual address space. The sizes are read at
+ * startup from the following system properties, or if a property is not set,
+ * from the <code>lljvm.properties</code> resource on the classpath (which can
+ * be placed alongside a compiled program to configure it):
+ * <ul>
+ * <li><code>lljvm.memory.size</code>: the size of the address space, at
+ *     most 1 GiB (default 1 GiB);</li>
+ * <li><code>lljvm.memory.data</code>: the size of the data segment
+ *     (default 1 MiB);</li>
+ * <li><code>lljvm.memory.stack</code>: the size of the stack
+ *     (default 1 MiB);</li>
+ * <li><code>lljvm.memory.pageSize</code>: the page size used by the paged
+ *     engine, a power of two between 1 KiB and 64 MiB (default 64 KiB).</li>
+ * </ul>
+ * Sizes may be given in bytes, or with a <code>K</code>, <code>M</code> or
+ * <code>G</code> suffix.
+ * 
+ * @author  David Roberts
+ */
+public final class MemoryLayout {
+    /** The name of the resource providing default properties */
+    private static final String RESOURCE = "lljvm.properties";
+    
+    /** Memory blocks are aligned to multiples of this */
+    private static final int ALIGNMENT = 8;
+    
+    private static final int MAX_SIZE = 1<<30;
+    private static final int MIN_PAGE_SHIFT = 10;
+    private static final int MAX_PAGE_SHIFT = 26;
+    
+    /** Properties read from the resource */
+    private final Properties resource;
+    /** The size of the address space */
+    private final int size;
+    /** The size of the data segment */
+    private final int dataSize;
+    /** The size of the stack */
+    private final int stackSize;
+    /** log2 of the page size */
+    private final int pageShift;
+    
+    /**
+     * Read the layout from the system properties and the lljvm.properties
+     * resource.
+     * 
+     * @throws IllegalArgumentException
+     *              if any of the sizes are invalid
+     */
+    public MemoryLayout() {
+        resource = loadResource();
+        size = getSize("lljvm.memory.size", MAX_SIZE);
+        dataSize = getSize("lljvm.memory.data", 1<<20);
+        stackSize = getSize("lljvm.memory.stack", 1<<20);
+        final int pageSize = getSize("lljvm.memory.pageSize",
+                1<<PagedMemoryEngine.DEFAULT_PAGE_SHIFT);
+        pageShift = Integer.numberOfTrailingZeros(pageSize);
+        
+        if(Integer.bitCount(pageSize) != 1
+        || pageShift < MIN_PAGE_SHIFT || pageShift > MAX_PAGE_SHIFT)
+            throw new IllegalArgumentException("lljvm.memory.pageSize "
+                    + "must be a power of two between 1K and 64M");
+        if(size > MAX_SIZE || size % pageSize != 0)
+            throw new IllegalArgumentException("lljvm.memory.size must be "
+                    + "a multiple of the page size, and at most 1G");
+        if(dataSize < ALIGNMENT || dataSize % ALIGNMENT != 0
+        || stackSize < ALIGNMENT || stackSize % ALIGNMENT != 0)
+            throw new IllegalArgumentException("lljvm.memory.data and "
+                    + "lljvm.memory.stack must be multiples of "+ALIGNMENT);
+        if(dataSize > size - stackSize)
+            throw new IllegalArgumentException("lljvm.memory.data and "
+                    + "lljvm.memory.stack do not fit in lljvm.memory.size");
+    }
+    
+    /**
+     * Load the lljvm.properties resource, if it exists.
+     * 
+     * @return  the properties read from the resource
+     */
+    private static Properties loadResource() {
+        final Properties properties = new Properties();
+        final InputStream in =
+            ClassLoader.getSystemResourceAsStream(RESOURCE);
+        if(in == null)
+            return properties;
+        try {
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
+        } catch(IOException e) {
+            throw new RuntimeException("Unable to read "+RESOURCE, e);
+        }
+        return properties;
+    }
+    
+    /**
+     * Returns the value of the given property, from the system properties
+     * or the lljvm.properties resource.
+     * 
+     * @param name  the name of the property
+     * @param def   the default value of the property
+     * @return      the value of the property, or def if it is not set
+     */
+    public String getProperty(String name, String def) {
+        final String value = System.getProperty(name);
+        if(value != null)
+            return value;
+        return resource.getProperty(name, def);
+    }
+    
+    /**
+     * Returns the value of the given size property.
+     * 
+     * @param name  the name of the property
+     * @param def   the default value of the property
+     * @return      the value of the property, or def if it is not set
+     * @throws IllegalArgumentException
+     *              if the value is not a positive size less than 2 GiB
+     */
+    private int getSize(String name, int def) {
+        final String value = getProperty(name, null);
+        if(value == null)
+            return def;
+        try {
+            final long size = parseSize(value.trim());
+            if(size > 0 && size <= Integer.MAX_VALUE)
+                return (int) size;
+        } catch(NumberFormatException e) {}
+        throw new IllegalArgumentException(
+                "Invalid size for "+name+": "+value);
+    }
+    
+    /**
+     * Parse a size, optionally followed by a K, M or G suffix.
+     * 
+     * @param value  the size to parse
+     * @return       the size in bytes
+     * @throws NumberFormatException
+     *              if the value is not a valid size
+     */
+    private static long parseSize(String value) {
+        int shift = 0;
+        switch(value.isEmpty() ? 0 : value.charAt(value.length() - 1)) {
+        case 'k': case 'K': shift = 10; break;
+        case 'm': case 'M': shift = 20; break;
+        case 'g': case 'G': shift = 30; break;
+        }
+        if(shift != 0)
+            value = value.substring(0, value.length() - 1);
+        final long size = Long.decode(value);
+        if(size < 0 || size > (Long.MAX_VALUE >> shift))
+            throw new NumberFormatException(value);
+        return size << shift;
+    }
+    
+    /**
+     * Returns the size of the address space.
+     * 
+     * @return  the size of the address space in bytes
+     */
+    public int getSize() {
+        return size;
+    }
+    
+    /**
+     * Returns the size of the data segment.
+     * 
+     * @return  the size of the data segment in bytes
+     */
+    public int getDataSize() {
+        return dataSize;
+    }
+    
+    /**
+     * Returns the size of the stack.
+     * 
+     * @return  the size of the stack in bytes
+     */
+    public int getStackSize() {
+        return stackSize;
+    }
+    
+    /**
+     * Returns log2 of the page size.
+     * 
+     * @return  log2 of the page size
+     */
+    public int getPageShift() {
+        return pageShift;
+    }
+}
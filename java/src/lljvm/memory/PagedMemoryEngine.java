@@ -0,0 +1,544 @@
+/*
+* Copyright (c) 2009 David Roberts <d@vidr.cc>
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+*/
+
+package lljvm.memory;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import lljvm.runtime.Memory.SegmentationFault;
+
+/**
+ * A memory engine which divides the address space into fixed-size pages,
+ * each backed by a separate direct buffer.
+ * 
+ * <p>Pages are allocated on demand: a newly mapped page refers to a single
+ * shared page of zeros, which is never written to, and is only given its
+ * own buffer the first time it is stored to. Unmapped pages are kept in a
+ * pool to be reused by later writes.</p>
+ * 
+ * @author  David Roberts
+ */
+public class PagedMemoryEngine implements MemoryEngine {
+    /** The default page size is 64 KiB */
+    public static final int DEFAULT_PAGE_SHIFT = 16;
+    
+    private static final ByteOrder ENDIANNESS = ByteOrder.LITTLE_ENDIAN;
+    
+    /** Copies at least this long use a single bulk transfer per page */
+    private static final int BULK_THRESHOLD = 64;
+    
+    /** Maximum number of unmapped pages kept for reuse */
+    private static final int MAX_POOL_SIZE = 64;
+    
+    /** log2 of the page size */
+    private final int pageShift;
+    /** The page size */
+    private final int pageSize;
+    /** Array of pages */
+    private final ByteBuffer[] pages;
+    /** The page of zeros shared by every mapped page not yet written to */
+    private final ByteBuffer zeroPage;
+    /** Unmapped pages available for reuse */
+    private final ByteBuffer[] pool = new ByteBuffer[MAX_POOL_SIZE];
+    /** Number of pages in the pool */
+    private int poolSize = 0;
+    
+    /**
+     * Construct a new paged engine with the default page size.
+     * 
+     * @param size  the size of the address space in bytes
+     */
+    public PagedMemoryEngine(int size) {
+        this(size, DEFAULT_PAGE_SHIFT);
+    }
+    
+    /**
+     * Construct a new paged engine.
+     * 
+     * @param size       the size of the address space in bytes. Must be a
+     *                   multiple of the page size.
+     * @param pageShift  log2 of the page size
+     */
+    public PagedMemoryEngine(int size, int pageShift) {
+        this.pageShift = pageShift;
+        this.pageSize = 1<<pageShift;
+        this.pages = new ByteBuffer[size>>>pageShift];
+        this.zeroPage = ByteBuffer.allocateDirect(pageSize).order(ENDIANNESS);
+    }
+    
+    public String getName() {
+        return "paged";
+    }
+    
+    /**
+     * Create a new zero-filled page, reusing a page from the pool if one is
+     * available.
+     * 
+     * @return  the new page
+     */
+    private ByteBuffer createPage() {
+        if(poolSize > 0) {
+            final ByteBuffer page = pool[--poolSize];
+            pool[poolSize] = null;
+            fillChunk(page, 0, (byte) 0, pageSize, 8);
+            return page;
+        }
+        return ByteBuffer.allocateDirect(pageSize).order(ENDIANNESS);
+    }
+    
+    /**
+     * Give the page of the given virtual memory address its own buffer, if it
+     * still refers to the zero page.
+     * 
+     * @param addr  the virtual memory address
+     * @return      the writable page of the given virtual memory address
+     */
+    private ByteBuffer materialise(int addr) {
+        ByteBuffer page = getPage(addr);
+        if(page == zeroPage)
+            page = pages[addr>>>pageShift] = createPage();
+        return page;
+    }
+    
+    /**
+     * Return the page of the given virtual memory address
+     * 
+     * @param addr  the virtual memory address
+     * @return      the page of the given virtual memory address
+     */
+    private ByteBuffer getPage(int addr) {
+        try {
+            return pages[addr>>>pageShift];
+        } catch(ArrayIndexOutOfBoundsException e) {
+            throw new SegmentationFault(addr);
+        }
+    }
+    
+    /**
+     * Return the page of the given virtual memory address, throwing a
+     * SegmentationFault if the page has not been mapped.
+     * 
+     * @param addr  the virtual memory address
+     * @return      the page of the given virtual memory address
+     */
+    ByteBuffer getMappedPage(int addr) {
+        final ByteBuffer page = getPage(addr);
+        if(page == null)
+            throw new SegmentationFault(addr);
+        return page;
+    }
+    
+    /**
+     * Return the page of the given virtual memory address for a store,
+     * giving the page its own buffer if it has not yet been written to.
+     * 
+     * @param addr  the virtual memory address
+     * @return      the page of the given virtual memory address, or null if
+     *              it has not been mapped
+     */
+    private ByteBuffer getStorePage(int addr) {
+        final ByteBuffer page = getPage(addr);
+        return page != zeroPage ? page : materialise(addr);
+    }
+    
+    /**
+     * Return the page of the given virtual memory address, throwing a
+     * SegmentationFault if the page has not been mapped, and giving the page
+     * its own buffer if it has not yet been written to.
+     * 
+     * @param addr  the virtual memory address
+     * @return      the writable page of the given virtual memory address
+     */
+    ByteBuffer getWritablePage(int addr) {
+        getMappedPage(addr);
+        return materialise(addr);
+    }
+    
+    /**
+     * Return the offset within the page of the given virtual memory address
+     * 
+     * @param addr  the virtual memory address
+     * @return      the offset of the given virtual memory address
+     */
+    private int getOffset(int addr) {
+        return addr & (pageSize - 1);
+    }
+    
+    public void map(int addr, int len) {
+        if(len <= 0)
+            return;
+        final int first = addr>>>pageShift;
+        final int last = (addr + len - 1)>>>pageShift;
+        for(int i = first; i <= last; i++)
+            if(pages[i] == null)
+                pages[i] = zeroPage;
+    }
+    
+    public void unmap(int addr, int len) {
+        if(len <= 0)
+            return;
+        // only release pages lying entirely within the range, and clear the
+        // parts of partially covered pages in case the range is mapped again
+        final int first = (addr + pageSize - 1)>>>pageShift;
+        final int end = (addr + len)>>>pageShift;
+        if(first > end) {
+            fill(addr, (byte) 0, len, 1);
+            return;
+        }
+        fill(addr, (byte) 0, (first<<pageShift) - addr, 1);
+        fill(end<<pageShift, (byte) 0, addr + len - (end<<pageShift), 1);
+        for(int i = first; i < end; i++) {
+            final ByteBuffer page = pages[i];
+            pages[i] = null;
+            if(page != null && page != zeroPage && poolSize < MAX_POOL_SIZE)
+                pool[poolSize++] = page;
+        }
+    }
+    
+    public void store(int addr, byte value) {
+        try {
+            getStorePage(addr).put(getOffset(addr), value);
+        } catch(NullPointerException e) {
+            throw new SegmentationFault(addr);
+        }
+    }
+    
+    public void store(int addr, short value) {
+        try {
+            getStorePage(addr).putShort(getOffset(addr), value);
+        } catch(NullPointerException e) {
+            throw new SegmentationFault(addr);
+        }
+    }
+    
+    public void store(int addr, int value) {
+        try {
+            getStorePage(addr).putInt(getOffset(addr), value);
+        } catch(NullPointerException e) {
+            throw new SegmentationFault(addr);
+        }
+    }
+    
+    public void store(int addr, long value) {
+        try {
+            getStorePage(addr).putLong(getOffset(addr), value);
+        } catch(NullPointerException e) {
+            throw new SegmentationFault(addr);
+        }
+    }
+    
+    public void store(int addr, float value) {
+        try {
+            getStorePage(addr).putFloat(getOffset(addr), value);
+        } catch(NullPointerException e) {
+            throw new SegmentationFault(addr);
+        }
+    }
+    
+    public void store(int addr, double value) {
+        try {
+            getStorePage(addr).putDouble(getOffset(addr), value);
+        } catch(NullPointerException e) {
+            throw new SegmentationFault(addr);
+        }
+    }
+    
+    public byte load_i8(int addr) {
+        try {
+            return getPage(addr).get(getOffset(addr));
+        } catch(NullPointerException e) {
+            throw new SegmentationFault(addr);
+        }
+    }
+    
+    public short load_i16(int addr) {
+        try {
+            return getPage(addr).getShort(getOffset(addr));
+        } catch(NullPointerException e) {
+            throw new SegmentationFault(addr);
+        }
+    }
+    
+    public int load_i32(int addr) {
+        try {
+            return getPage(addr).getInt(getOffset(addr));
+        } catch(NullPointerException e) {
+            throw new SegmentationFault(addr);
+        }
+    }
+    
+    public long load_i64(int addr) {
+        try {
+            return getPage(addr).getLong(getOffset(addr));
+        } catch(NullPointerException e) {
+            throw new SegmentationFault(addr);
+        }
+    }
+    
+    public float load_f32(int addr) {
+        try {
+            return getPage(addr).getFloat(getOffset(addr));
+        } catch(NullPointerException e) {
+            throw new SegmentationFault(addr);
+        }
+    }
+    
+    public double load_f64(int addr) {
+        try {
+            return getPage(addr).getDouble(getOffset(addr));
+        } catch(NullPointerException e) {
+            throw new SegmentationFault(addr);
+        }
+    }
+    
+    public void store(int addr, byte[] bytes, int offset, int len) {
+        while(len > 0) {
+            final int pageOffset = getOffset(addr);
+            final int n = Math.min(len, pageSize - pageOffset);
+            at(getWritablePage(addr), pageOffset).put(bytes, offset, n);
+            addr += n;
+            offset += n;
+            len -= n;
+        }
+    }
+    
+    public void load(int addr, byte[] bytes, int offset, int len) {
+        while(len > 0) {
+            final int pageOffset = getOffset(addr);
+            final int n = Math.min(len, pageSize - pageOffset);
+            at(getMappedPage(addr), pageOffset).get(bytes, offset, n);
+            addr += n;
+            offset += n;
+            len -= n;
+        }
+    }
+    
+    /**
+     * Return the offset of the first zero byte in the given buffer between
+     * the given offsets, examining eight bytes at a time. The buffer must be
+     * little-endian.
+     * 
+     * @param buf     the buffer
+     * @param offset  the offset at which to start searching
+     * @param end     the offset at which to stop searching
+     * @return        the offset of the first zero byte, or -1 if there is
+     *                none
+     */
+    static int findZero(ByteBuffer buf, int offset, int end) {
+        for(; (offset & 7) != 0 && offset < end; offset++)
+            if(buf.get(offset) == 0)
+                return offset;
+        final int wordEnd = end & ~7;
+        for(; offset < wordEnd; offset += 8) {
+            final long word = buf.getLong(offset);
+            // the lowest set bit marks the first zero byte
+            final long zeros = (word - 0x0101010101010101L) & ~word
+                             & 0x8080808080808080L;
+            if(zeros != 0)
+                return offset + (Long.numberOfTrailingZeros(zeros) >>> 3);
+        }
+        for(; offset < end; offset++)
+            if(buf.get(offset) == 0)
+                return offset;
+        return -1;
+    }
+    
+    public int strlen(int addr) {
+        int p = addr;
+        while(true) {
+            final int offset = getOffset(p);
+            final int end = findZero(getMappedPage(p), offset, pageSize);
+            if(end >= 0)
+                return p + (end - offset) - addr;
+            p += pageSize - offset;
+        }
+    }
+    
+    /**
+     * Return a duplicate of the given buffer positioned at the given offset,
+     * for relative bulk transfers. The absolute bulk transfers are only
+     * available from Java 13.
+     * 
+     * @param buf     the buffer
+     * @param offset  the offset within the buffer
+     * @return        the positioned duplicate
+     */
+    static ByteBuffer at(ByteBuffer buf, int offset) {
+        final ByteBuffer dup = buf.duplicate();
+        ((Buffer) dup).position(offset);
+        return dup;
+    }
+    
+    /**
+     * Copy n bytes from offset srcOffset of buffer src to offset destOffset
+     * of buffer dest with a single bulk transfer. If the buffers are the same
+     * and the ranges overlap, then the copy behaves as if the bytes were
+     * first copied to a temporary buffer.
+     * 
+     * @param dest        the destination buffer
+     * @param destOffset  the offset within the destination buffer
+     * @param src         the source buffer
+     * @param srcOffset   the offset within the source buffer
+     * @param n           the number of bytes to copy
+     */
+    static void copyBuffer(ByteBuffer dest, int destOffset,
+                           ByteBuffer src, int srcOffset, int n) {
+        // the absolute bulk put is only available from Java 16, so transfer
+        // between duplicates instead. Buffer methods are called through
+        // Buffer, as ByteBuffer only overrides them from Java 9.
+        final ByteBuffer from = src.duplicate();
+        ((Buffer) from).limit(srcOffset + n);
+        ((Buffer) from).position(srcOffset);
+        final ByteBuffer to = dest.duplicate();
+        ((Buffer) to).position(destOffset);
+        to.put(from);
+    }
+    
+    /**
+     * Copy n bytes from offset srcOffset of page srcPage to offset destOffset
+     * of page destPage. The given range must lie within both pages. If the
+     * pages are the same and the ranges overlap, then the copy behaves as if
+     * the bytes were first copied to a temporary buffer.
+     * 
+     * @param destPage    the destination page
+     * @param destOffset  the offset within the destination page
+     * @param srcPage     the source page
+     * @param srcOffset   the offset within the source page
+     * @param n           the number of bytes to copy
+     * @param align       the alignment of the source and destination pointers
+     */
+    private static void copyChunk(ByteBuffer destPage, int destOffset,
+                                  ByteBuffer srcPage, int srcOffset,
+                                  int n, int align) {
+        if(n >= BULK_THRESHOLD) {
+            copyBuffer(destPage, destOffset, srcPage, srcOffset, n);
+        } else if(srcPage == destPage
+                && srcOffset < destOffset && destOffset < srcOffset + n) {
+            // short overlapping copy, so copy backwards
+            for(int i = n - 1; i >= 0; i--)
+                destPage.put(destOffset + i, srcPage.get(srcOffset + i));
+        } else if(align >= 8 && (n & 7) == 0) {
+            for(int i = 0; i < n; i += 8)
+                destPage.putLong(destOffset + i, srcPage.getLong(srcOffset + i));
+        } else if(align >= 4 && (n & 3) == 0) {
+            for(int i = 0; i < n; i += 4)
+                destPage.putInt(destOffset + i, srcPage.getInt(srcOffset + i));
+        } else {
+            for(int i = 0; i < n; i++)
+                destPage.put(destOffset + i, srcPage.get(srcOffset + i));
+        }
+    }
+    
+    /**
+     * Copy len bytes from memory area src to memory area dest, one page-sized
+     * chunk at a time, starting from the lowest address.
+     * 
+     * @param dest   the destination memory area
+     * @param src    the source memory area
+     * @param len    the number of bytes to copy
+     * @param align  the alignment of the source and destination pointers
+     */
+    private void copyForward(int dest, int src, int len, int align) {
+        while(len > 0) {
+            final int srcOffset = getOffset(src);
+            final int destOffset = getOffset(dest);
+            final int n = Math.min(len,
+                    pageSize - Math.max(srcOffset, destOffset));
+            final ByteBuffer destPage = getWritablePage(dest);
+            final ByteBuffer srcPage = getMappedPage(src);
+            copyChunk(destPage, destOffset, srcPage, srcOffset, n, align);
+            src += n;
+            dest += n;
+            len -= n;
+        }
+    }
+    
+    /**
+     * Copy len bytes from memory area src to memory area dest, one page-sized
+     * chunk at a time, starting from the highest address.
+     * 
+     * @param dest   the destination memory area
+     * @param src    the source memory area
+     * @param len    the number of bytes to copy
+     * @param align  the alignment of the source and destination pointers
+     */
+    private void copyBackward(int dest, int src, int len, int align) {
+        while(len > 0) {
+            final int srcEnd = getOffset(src + len - 1) + 1;
+            final int destEnd = getOffset(dest + len - 1) + 1;
+            final int n = Math.min(len, Math.min(srcEnd, destEnd));
+            len -= n;
+            final ByteBuffer destPage = getWritablePage(dest + len);
+            final ByteBuffer srcPage = getMappedPage(src + len);
+            copyChunk(destPage, destEnd - n, srcPage, srcEnd - n, n, align);
+        }
+    }
+    
+    public void copy(int dest, int src, int len, int align) {
+        if(dest - src >= len || dest <= src)
+            // the areas don't overlap, or overlap in a way that a forward
+            // copy won't overwrite source bytes before they are read
+            copyForward(dest, src, len, align);
+        else
+            copyBackward(dest, src, len, align);
+    }
+    
+    /**
+     * Fill n bytes of the given buffer with the constant byte val, starting
+     * at the given offset.
+     * 
+     * @param buf     the buffer
+     * @param offset  the offset within the buffer
+     * @param val     the constant byte fill value
+     * @param n       the number of bytes to set
+     * @param align   the alignment of the destination pointer
+     */
+    static void fillChunk(ByteBuffer buf, int offset, byte val,
+                          int n, int align) {
+        final int end = offset + n;
+        if(n >= 16 || (align >= 8 && ((offset | n) & 7) == 0)) {
+            // fill byte-wise up to an 8-byte boundary, then a long at a time
+            final long pattern = (val & 0xffL) * 0x0101010101010101L;
+            final int wordEnd = end & ~7;
+            while((offset & 7) != 0)
+                buf.put(offset++, val);
+            for(; offset < wordEnd; offset += 8)
+                buf.putLong(offset, pattern);
+        }
+        for(; offset < end; offset++)
+            buf.put(offset, val);
+    }
+    
+    public void fill(int dest, byte val, int len, int align) {
+        while(len > 0) {
+            final int offset = getOffset(dest);
+            final int n = Math.min(len, pageSize - offset);
+            // filling an untouched page with zeros is a no-op
+            if(val != 0 || getMappedPage(dest) != zeroPage)
+                fillChunk(getWritablePage(dest), offset, val, n, align);
+            dest += n;
+            len -= n;
+        }
+    }
+}
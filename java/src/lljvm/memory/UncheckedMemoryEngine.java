@@ -0,0 +1,53 @@
+/*
+* Copyright (c) 2009 David Roberts <d@vidr.cc>
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+*/
+
+package lljvm.memory;
+
+/**
+ * A flat memory engine which does not check that accessed addresses have
+ * been mapped. Only accesses outside of the address space throw a
+ * SegmentationFault, so stray accesses to the gap between the heap and the
+ * stack go undetected. Intended for running trusted programs as fast as
+ * possible.
+ * 
+ * @author  David Roberts
+ */
+public class UncheckedMemoryEngine extends FlatMemoryEngine {
+    /**
+     * Construct a new unchecked engine.
+     * 
+     * @param size  the size of the address space in bytes
+     */
+    public UncheckedMemoryEngine(int size) {
+        super(size);
+    }
+    
+    public String getName() {
+        return "unchecked";
+    }
+    
+    protected int check(int addr, int width) {
+        return addr;
+    }
+    
+    protected void checkRange(int addr, int len) {}
+}
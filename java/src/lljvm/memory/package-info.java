@@ -0,0 +1,4 @@
+/**
+ * Storage engines backing the LLJVM virtual memory.
+ */
+package lljvm.memory;
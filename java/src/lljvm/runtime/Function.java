@@ -22,29 +22,64 @@
 
 package lljvm.runtime;
 
-import java.lang.reflect.InvocationTargetException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 import lljvm.util.ReflectionUtils;
 
 /**
  * Provides function pointers for methods.
  * 
+ * <p>Function pointers are drawn from a compact range above the address
+ * space, and index dense tables of method handles. A function pointer is
+ * only generated the first time it is requested, and each class is only
+ * scanned for static methods once. Code compiled from prototyped calls
+ * through function pointers calls the handle returned by
+ * {@link #getHandle(int)} through the {@link InlineCache} of each call site,
+ * with the arguments on the operand stack. Other calls pass a pointer to a
+ * packed list of arguments to one of the invoke methods, which calls an
+ * invoker: a method handle which loads each argument directly from memory
+ * and calls the method, so that neither involves reflection or boxing.
+ * Handles and invokers are created by the first call through each function
+ * pointer.</p>
+ * 
  * @author  David Roberts
  */
 public final class Function {
-    /** Set of registered classes */
-    private static Set<String> registeredClasses = new HashSet<String>();
-    /** Map of function signatures to function pointers */
-    private static Map<String, Integer> functionPointers
-        = new HashMap<String, Integer>();
-    /** Map of function pointers to Method objects */
-    private static Map<Integer, Method> functionObjects
-        = new HashMap<Integer, Method>();
+    /**
+     * The first function pointer. Function pointers lie above the address
+     * space, so that they are never mistaken for the address of any data.
+     */
+    private static final int FUNCTION_BASE = 1<<30;
+    
+    /** Static methods of scanned classes, by binary name and method name */
+    private static Map<String, Map<String, List<Method>>> classMethods
+        = new HashMap<String, Map<String, List<Method>>>();
+    /** Function pointers, by binary class name and method signature */
+    private static Map<String, Map<String, Integer>> functionPointers
+        = new HashMap<String, Map<String, Integer>>();
+    /** Number of function pointers generated */
+    private static int numFunctions = 0;
+    /** Methods pointed to, indexed by function pointer - FUNCTION_BASE */
+    private static Method[] functionObjects = new Method[0];
+    /** Method handles, indexed by function pointer - FUNCTION_BASE */
+    private static MethodHandle[] handles = new MethodHandle[0];
+    /** Invokers, indexed by function pointer - FUNCTION_BASE */
+    private static MethodHandle[] invokers = new MethodHandle[0];
+    /** Whether each function pointer was registered by register */
+    private static boolean[] callbacks = new boolean[0];
+    /** Indices freed by unregister, available for reuse */
+    private static int[] freeIndices = new int[0];
+    /** Number of indices freed by unregister */
+    private static int numFree = 0;
     
     /**
      * Prevent this class from being instantiated.
@@ -52,27 +87,90 @@ public final class Function {
     private Function() {}
     
     /**
-     * If the class specified by the given binary name has not yet been
-     * registered, then generate function pointers for all public static
-     * methods that it declares.
+     * Return the static methods declared by the class specified by the given
+     * binary name, grouped by name. Each class is only scanned the first time
+     * one of its methods is requested.
      * 
-     * @param classname  Binary name of the class to register.
+     * @param classname  the binary name of the class
+     * @return           the static methods declared by the class
      * @throws ClassNotFoundException
      *                   if no class with the given name can be found
      */
-    private static void registerClass(String classname)
+    private static Map<String, List<Method>> getMethods(String classname)
     throws ClassNotFoundException {
-        if(registeredClasses.contains(classname))
-            return;
-        Class<?> cls = ReflectionUtils.getClass(classname);
+        Map<String, List<Method>> methods = classMethods.get(classname);
+        if(methods != null)
+            return methods;
+        methods = new HashMap<String, List<Method>>();
+        final Class<?> cls = ReflectionUtils.getClass(classname);
         for(Method method : ReflectionUtils.getStaticMethods(cls)) {
-            final int addr = Memory.allocateData();
-            final String sig = ReflectionUtils.getQualifiedSignature(method);
-            functionPointers.put(sig, addr);
-            functionObjects.put(addr, method);
-            method.setAccessible(true);
+            List<Method> overloads = methods.get(method.getName());
+            if(overloads == null)
+                methods.put(method.getName(),
+                            overloads = new ArrayList<Method>(1));
+            overloads.add(method);
+        }
+        classMethods.put(classname, methods);
+        return methods;
+    }
+    
+    /**
+     * Allocate an index into the tables for a new function pointer, reusing
+     * one freed by unregister if possible.
+     * 
+     * @return  the index
+     */
+    private static int allocateIndex() {
+        if(numFree > 0)
+            return freeIndices[--numFree];
+        final int index = numFunctions++;
+        if(index >= functionObjects.length) {
+            final int length = java.lang.Math.max(16,
+                    functionObjects.length * 2);
+            functionObjects = Arrays.copyOf(functionObjects, length);
+            handles = Arrays.copyOf(handles, length);
+            invokers = Arrays.copyOf(invokers, length);
+            callbacks = Arrays.copyOf(callbacks, length);
+        }
+        return index;
+    }
+    
+    /**
+     * Generate a function pointer for the method with the specified
+     * signature declared by the specified class.
+     * 
+     * @param classname        the binary name of the declaring class
+     * @param methodSignature  the signature of the method
+     * @return                 a function pointer for the specified method
+     * @throws ClassNotFoundException
+     *                   if no class with the given name can be found
+     */
+    private static int registerMethod(String classname,
+                                      String methodSignature)
+    throws ClassNotFoundException {
+        final int paren = methodSignature.indexOf('(');
+        final List<Method> overloads = paren < 0 ? null
+                : getMethods(classname).get(
+                        methodSignature.substring(0, paren));
+        if(overloads != null) {
+            for(Method method : overloads) {
+                if(!ReflectionUtils.getSignature(method)
+                        .equals(methodSignature))
+                    continue;
+                final int index = allocateIndex();
+                functionObjects[index] = method;
+                Map<String, Integer> pointers =
+                    functionPointers.get(classname);
+                if(pointers == null)
+                    functionPointers.put(classname,
+                            pointers = new HashMap<String, Integer>());
+                pointers.put(methodSignature, FUNCTION_BASE + index);
+                return FUNCTION_BASE + index;
+            }
         }
-        registeredClasses.add(classname);
+        throw new IllegalArgumentException(
+                "Unable to get function pointer for "
+                + classname + "/" + methodSignature);
     }
     
     /**
@@ -85,44 +183,269 @@ public final class Function {
      */
     public static int getFunctionPointer(String classname,
                                          String methodSignature) {
+        final Map<String, Integer> pointers = functionPointers.get(classname);
+        if(pointers != null) {
+            final Integer f = pointers.get(methodSignature);
+            if(f != null)
+                return f;
+        }
         try {
-            registerClass(classname);
+            return registerMethod(classname, methodSignature);
         } catch(ClassNotFoundException e) {
             throw new RuntimeException(e);
         }
-        final String sig = classname + "/" + methodSignature;
-        if(!functionPointers.containsKey(sig))
+    }
+    
+    /**
+     * Test whether values of the given type can be passed to or returned
+     * from C code.
+     * 
+     * @param type  the type
+     * @return      true if the type is a primitive type other than char or
+     *              void
+     */
+    private static boolean isPassable(Class<?> type) {
+        return type.isPrimitive() && type != char.class && type != void.class;
+    }
+    
+    /**
+     * Return a function pointer which calls the given method handle. The
+     * method handle may only take and return primitive types other than
+     * char, as C functions do, and the function pointer remains valid until
+     * it is passed to {@link #unregister(int)}.
+     * 
+     * @param handle  the method handle
+     * @return        a function pointer calling the method handle
+     * @throws IllegalArgumentException
+     *                if the method handle takes or returns any other type
+     */
+    public static int register(MethodHandle handle) {
+        final MethodType type = handle.type();
+        for(Class<?> param : type.parameterArray())
+            if(!isPassable(param))
+                throw new IllegalArgumentException(
+                        "Unable to pass argument of type "+param.getName());
+        if(type.returnType() != void.class && !isPassable(type.returnType()))
             throw new IllegalArgumentException(
-                    "Unable to get function pointer for "+sig);
-        return functionPointers.get(sig);
+                    "Unable to return value of type "
+                    + type.returnType().getName());
+        final int index = allocateIndex();
+        handles[index] = handle;
+        callbacks[index] = true;
+        return FUNCTION_BASE + index;
     }
     
     /**
-     * Invoke the method pointed to by the given function pointer with the
-     * given arguments.
+     * Determine whether the given method redeclares a public method of
+     * Object, such as Comparator.equals, which does not count towards the
+     * abstract methods of a functional interface.
      * 
-     * @param f     the function pointer
-     * @param args  a pointer to the packed list of arguments
-     * @return      the return value of the method
+     * @param method  the method
+     * @return        whether the method is a public method of Object
      */
-    private static Object invoke(int f, int args) {
-        final Method method = functionObjects.get(f);
-        if(method == null)
-            throw new IllegalArgumentException("Invalid function pointer: "+f);
-        final Class<?>[] paramTypes = method.getParameterTypes();
-        final Object[] params = Memory.unpack(args, paramTypes);
+    private static boolean isObjectMethod(Method method) {
         try {
-            return method.invoke(null, params);
+            Object.class.getMethod(method.getName(),
+                                   method.getParameterTypes());
+            return true;
+        } catch(NoSuchMethodException e) {
+            return false;
+        }
+    }
+    
+    /**
+     * Return a function pointer which calls the single abstract method of
+     * the given functional interface on the given object, such as a lambda
+     * expression. The method may only take and return primitive types other
+     * than char, as C functions do, and the function pointer remains valid
+     * until it is passed to {@link #unregister(int)}.
+     * 
+     * @param <T>       the functional interface
+     * @param iface     the functional interface
+     * @param callback  the object implementing the interface
+     * @return          a function pointer calling the object
+     * @throws IllegalArgumentException
+     *                  if the interface does not have a single abstract
+     *                  method, or the method takes or returns any other type
+     */
+    public static <T> int register(Class<T> iface, T callback) {
+        Method abstractMethod = null;
+        for(Method method : iface.getMethods()) {
+            if(!Modifier.isAbstract(method.getModifiers())
+            || isObjectMethod(method))
+                continue;
+            if(abstractMethod != null)
+                throw new IllegalArgumentException(iface.getName()
+                        + " has more than one abstract method");
+            abstractMethod = method;
+        }
+        if(!iface.isInterface() || abstractMethod == null)
+            throw new IllegalArgumentException(iface.getName()
+                    + " is not a functional interface");
+        try {
+            return register(MethodHandles.publicLookup()
+                    .unreflect(abstractMethod).bindTo(callback));
         } catch(IllegalAccessException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+    
+    /**
+     * Release a function pointer returned by register, so that it may be
+     * reused. Calling the function pointer afterwards is an error.
+     * 
+     * @param f  the function pointer
+     * @throws IllegalArgumentException
+     *           if the function pointer was not returned by register, or
+     *           has already been unregistered
+     */
+    public static void unregister(int f) {
+        final int index = f - FUNCTION_BASE;
+        if(index < 0 || index >= numFunctions || !callbacks[index])
+            throw new IllegalArgumentException(
+                    "Not a registered function pointer: "+f);
+        handles[index] = null;
+        invokers[index] = null;
+        callbacks[index] = false;
+        InlineCache.invalidate(f);
+        if(numFree >= freeIndices.length)
+            freeIndices = Arrays.copyOf(freeIndices,
+                    java.lang.Math.max(16, freeIndices.length * 2));
+        freeIndices[numFree++] = index;
+    }
+    
+    /**
+     * Return a method handle for Memory.load_&lt;type&gt;(int base, int
+     * offset) for the given type.
+     * 
+     * @param type  the type of value to load. Must be a primitive type other
+     *              than char.
+     * @return      the method handle
+     * @throws ReflectiveOperationException
+     *              if the method cannot be found
+     */
+    private static MethodHandle getLoader(Class<?> type)
+    throws ReflectiveOperationException {
+        final String name;
+        if(type == boolean.class)     name = "load_i1";
+        else if(type == byte.class)   name = "load_i8";
+        else if(type == short.class)  name = "load_i16";
+        else if(type == int.class)    name = "load_i32";
+        else if(type == long.class)   name = "load_i64";
+        else if(type == float.class)  name = "load_f32";
+        else if(type == double.class) name = "load_f64";
+        else throw new IllegalArgumentException(
+                "Unable to pass argument of type "+type.getName());
+        return MethodHandles.lookup().findStatic(Memory.class, name,
+                MethodType.methodType(type, int.class, int.class));
+    }
+    
+    /**
+     * Return a method handle for the method pointed to by the given function
+     * pointer.
+     * 
+     * @param f  the function pointer
+     * @return   the method handle
+     */
+    public static MethodHandle getHandle(int f) {
+        final int index = f - FUNCTION_BASE;
+        if(index >= 0 && index < numFunctions) {
+            final MethodHandle handle = handles[index];
+            if(handle != null)
+                return handle;
+            final Method method = functionObjects[index];
+            if(method != null) {
+                try {
+                    if(!Modifier.isPublic(method.getModifiers())
+                    || !Modifier.isPublic(
+                            method.getDeclaringClass().getModifiers()))
+                        method.setAccessible(true);
+                    return handles[index] =
+                        MethodHandles.lookup().unreflect(method);
+                } catch(IllegalAccessException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+        throw new IllegalArgumentException("Invalid function pointer: "+f);
+    }
+    
+    /**
+     * Create an invoker for the given method handle, which takes a pointer
+     * to the packed list of arguments, laid out as by Memory.pack.
+     * 
+     * @param target  the method handle
+     * @return        the invoker
+     */
+    private static MethodHandle createInvoker(MethodHandle target) {
+        try {
+            final Class<?>[] paramTypes = target.type().parameterArray();
+            final MethodHandle[] loaders = new MethodHandle[paramTypes.length];
+            int offset = 0;
+            for(int i = 0; i < paramTypes.length; i++) {
+                final int size = ReflectionUtils.sizeOf(paramTypes[i]);
+                // the list is 8-byte aligned, so aligning the offset is
+                // equivalent to aligning the address
+                offset = (offset + size - 1) & ~(size - 1);
+                loaders[i] = MethodHandles.insertArguments(
+                        getLoader(paramTypes[i]), 1, offset);
+                offset += size;
+            }
+            // pass the list pointer to every loader
+            return MethodHandles.permuteArguments(
+                    MethodHandles.filterArguments(target, 0, loaders),
+                    MethodType.methodType(target.type().returnType(),
+                                          int.class),
+                    new int[paramTypes.length]);
+        } catch(ReflectiveOperationException e) {
             throw new RuntimeException(e);
-        } catch(InvocationTargetException e) {
-            Throwable cause = e.getCause();
-            if(cause instanceof RuntimeException)
-                throw (RuntimeException) cause;
-            throw new RuntimeException(cause);
         }
     }
     
+    /**
+     * Return the invoker for the given function pointer.
+     * 
+     * @param f  the function pointer
+     * @return   the invoker
+     */
+    private static MethodHandle getInvoker(int f) {
+        final int index = f - FUNCTION_BASE;
+        if(index >= 0 && index < numFunctions && invokers[index] != null)
+            return invokers[index];
+        final MethodHandle invoker = createInvoker(getHandle(f));
+        return invokers[index] = invoker;
+    }
+    
+    /**
+     * Return the invoker for the given function pointer, adapted to the
+     * given return type.
+     * 
+     * @param f           the function pointer
+     * @param returnType  the return type
+     * @return            the invoker
+     */
+    private static MethodHandle getInvoker(int f, Class<?> returnType) {
+        final MethodHandle invoker = getInvoker(f);
+        if(invoker.type().returnType() == returnType)
+            return invoker;
+        return invoker.asType(MethodType.methodType(returnType, int.class));
+    }
+    
+    /**
+     * Return an unchecked exception for rethrowing the given exception
+     * thrown by an invoker. Errors are rethrown directly.
+     * 
+     * @param e  the exception
+     * @return   the exception to throw
+     */
+    private static RuntimeException propagate(Throwable e) {
+        if(e instanceof java.lang.Error)
+            throw (java.lang.Error) e;
+        if(e instanceof RuntimeException)
+            return (RuntimeException) e;
+        return new RuntimeException(e);
+    }
+    
     /**
      * Invoke the method pointed to by the given function pointer with the
      * given arguments.
@@ -131,7 +454,11 @@ public final class Function {
      * @param args  a pointer to the packed list of arguments
      */
     public static void invoke_void(int f, int args) {
-        invoke(f, args);
+        try {
+            getInvoker(f, void.class).invokeExact(args);
+        } catch(Throwable e) {
+            throw propagate(e);
+        }
     }
     
     /**
@@ -143,7 +470,11 @@ public final class Function {
      * @return      the return value of the method
      */
     public static boolean invoke_i1(int f, int args) {
-        return (Boolean) invoke(f, args);
+        try {
+            return (boolean) getInvoker(f, boolean.class).invokeExact(args);
+        } catch(Throwable e) {
+            throw propagate(e);
+        }
     }
     
     /**
@@ -155,7 +486,11 @@ public final class Function {
      * @return      the return value of the method
      */
     public static byte invoke_i8(int f, int args) {
-        return (Byte) invoke(f, args);
+        try {
+            return (byte) getInvoker(f, byte.class).invokeExact(args);
+        } catch(Throwable e) {
+            throw propagate(e);
+        }
     }
     
     /**
@@ -167,7 +502,11 @@ public final class Function {
      * @return      the return value of the method
      */
     public static short invoke_i16(int f, int args) {
-        return (Short) invoke(f, args);
+        try {
+            return (short) getInvoker(f, short.class).invokeExact(args);
+        } catch(Throwable e) {
+            throw propagate(e);
+        }
     }
     
     /**
@@ -179,7 +518,11 @@ public final class Function {
      * @return      the return value of the method
      */
     public static int invoke_i32(int f, int args) {
-        return (Integer) invoke(f, args);
+        try {
+            return (int) getInvoker(f, int.class).invokeExact(args);
+        } catch(Throwable e) {
+            throw propagate(e);
+        }
     }
     
     /**
@@ -191,7 +534,11 @@ public final class Function {
      * @return      the return value of the method
      */
     public static long invoke_i64(int f, int args) {
-        return (Long) invoke(f, args);
+        try {
+            return (long) getInvoker(f, long.class).invokeExact(args);
+        } catch(Throwable e) {
+            throw propagate(e);
+        }
     }
     
     /**
@@ -203,7 +550,11 @@ public final class Function {
      * @return      the return value of the method
      */
     public static float invoke_f32(int f, int args) {
-        return (Float) invoke(f, args);
+        try {
+            return (float) getInvoker(f, float.class).invokeExact(args);
+        } catch(Throwable e) {
+            throw propagate(e);
+        }
     }
     
     /**
@@ -215,6 +566,10 @@ public final class Function {
      * @return      the return value of the method
      */
     public static double invoke_f64(int f, int args) {
-        return (Double) invoke(f, args);
+        try {
+            return (double) getInvoker(f, double.class).invokeExact(args);
+        } catch(Throwable e) {
+            throw propagate(e);
+        }
     }
 }
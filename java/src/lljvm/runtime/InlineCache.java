@@ -0,0 +1,222 @@
+/*
+* Copyright (c) 2009 David Roberts <d@vidr.cc>
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+*/
+
+package lljvm.runtime;
+
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An inline cache for a call site calling through function pointers.
+ * 
+ * <p>Each call site is given a method handle by {@link #create}, which takes
+ * the function pointer followed by the arguments of the call. The first few
+ * function pointers seen by the call site are each guarded by a test of the
+ * pointer value and called directly, so that the JIT compiler can inline
+ * them when the handle is held in a static final field. Once a call site
+ * has seen more than MAX_TARGETS function pointers, it becomes megamorphic
+ * and looks up every pointer in the table kept by {@link Function}.</p>
+ * 
+ * <p>If the <code>lljvm.inlinecache.stats</code> system property is set to
+ * true, then the state of every call site is printed to standard error
+ * when the virtual machine exits.</p>
+ * 
+ * @author  David Roberts
+ */
+public final class InlineCache extends MutableCallSite {
+    /** Maximum number of targets cached by a call site */
+    private static final int MAX_TARGETS = 4;
+    
+    /** Handle for InlineCache.miss */
+    private static final MethodHandle MISS;
+    /** Handle for InlineCache.isPointer */
+    private static final MethodHandle IS_POINTER;
+    /** Handle for Function.getHandle */
+    private static final MethodHandle GET_HANDLE;
+    
+    static {
+        final MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            MISS = lookup.findVirtual(InlineCache.class, "miss",
+                    MethodType.methodType(Object.class,
+                                          int.class, Object[].class));
+            IS_POINTER = lookup.findStatic(InlineCache.class, "isPointer",
+                    MethodType.methodType(boolean.class,
+                                          int.class, int.class));
+            GET_HANDLE = lookup.findStatic(Function.class, "getHandle",
+                    MethodType.methodType(MethodHandle.class, int.class));
+        } catch(ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+    
+    /** Every call site created, in order of creation */
+    private static final List<InlineCache> sites = new ArrayList<InlineCache>();
+    
+    static {
+        if(Boolean.getBoolean("lljvm.inlinecache.stats"))
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                public void run() {
+                    printStatistics(java.lang.System.err);
+                }
+            });
+    }
+    
+    /** The name of the call site */
+    private final String name;
+    /** The type of the functions called */
+    private final MethodType calleeType;
+    /** The handle called when the cache misses */
+    private final MethodHandle fallback;
+    /** The function pointers cached */
+    private final int[] targets = new int[MAX_TARGETS];
+    /** The number of targets cached */
+    private int numTargets = 0;
+    /** Whether the call site has seen too many targets to cache */
+    private boolean megamorphic = false;
+    /** The number of calls that missed the cache */
+    private long misses = 0;
+    
+    /**
+     * Construct a new inline cache.
+     * 
+     * @param name        the name of the call site
+     * @param calleeType  the type of the functions called
+     */
+    private InlineCache(String name, MethodType calleeType) {
+        super(calleeType.insertParameterTypes(0, int.class));
+        this.name = name;
+        this.calleeType = calleeType;
+        this.fallback = MISS.bindTo(this)
+                .asCollector(Object[].class, calleeType.parameterCount())
+                .asType(type());
+        setTarget(fallback);
+    }
+    
+    /**
+     * Create a call site calling functions of the given type through
+     * function pointers.
+     * 
+     * @param descriptor  the method descriptor of the functions called
+     * @param name        the name of the call site, for statistics
+     * @return            a method handle taking a function pointer followed
+     *                    by the arguments to pass to the function
+     */
+    public static MethodHandle create(String descriptor, String name) {
+        final InlineCache site = new InlineCache(name,
+                MethodType.fromMethodDescriptorString(descriptor,
+                        InlineCache.class.getClassLoader()));
+        sites.add(site);
+        return site.dynamicInvoker();
+    }
+    
+    /**
+     * Test whether the given function pointer is the expected one.
+     * 
+     * @param expected  the expected function pointer
+     * @param f         the function pointer
+     * @return          true if the function pointers are equal
+     */
+    private static boolean isPointer(int expected, int f) {
+        return f == expected;
+    }
+    
+    /**
+     * Call the function pointed to by the given function pointer when it
+     * is not cached, caching it if the call site is not megamorphic.
+     * 
+     * @param f     the function pointer
+     * @param args  the arguments to the function
+     * @return      the return value of the function
+     * @throws Throwable
+     *              if the function throws anything
+     */
+    private Object miss(int f, Object[] args) throws Throwable {
+        misses++;
+        final MethodHandle target = Function.getHandle(f).asType(calleeType);
+        if(numTargets < MAX_TARGETS) {
+            targets[numTargets++] = f;
+            setTarget(MethodHandles.guardWithTest(
+                    MethodHandles.insertArguments(IS_POINTER, 0, f),
+                    MethodHandles.dropArguments(target, 0, int.class),
+                    getTarget()));
+        } else if(!megamorphic) {
+            megamorphic = true;
+            setTarget(MethodHandles.filterArguments(
+                    MethodHandles.invoker(calleeType), 0, GET_HANDLE));
+        }
+        return target.invokeWithArguments(args);
+    }
+    
+    /**
+     * Empty the cache of every call site caching the given function pointer,
+     * as when the function pointer is unregistered. Megamorphic call sites
+     * look up every function pointer, so are left as they are.
+     * 
+     * @param f  the function pointer
+     */
+    static void invalidate(int f) {
+        for(InlineCache site : sites) {
+            for(int i = 0; i < site.numTargets && !site.megamorphic; i++) {
+                if(site.targets[i] == f) {
+                    site.numTargets = 0;
+                    site.setTarget(site.fallback);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Returns a description of the state of this call site.
+     * 
+     * @return  the state of this call site
+     */
+    private String getState() {
+        if(megamorphic)
+            return "megamorphic";
+        if(numTargets == 0)
+            return "uninitialised";
+        if(numTargets == 1)
+            return "monomorphic";
+        return "polymorphic (" + numTargets + ")";
+    }
+    
+    /**
+     * Print the state of every call site to the given stream.
+     * 
+     * @param out  the stream to print to
+     */
+    public static void printStatistics(PrintStream out) {
+        out.println("lljvm.runtime.InlineCache: " + sites.size()
+                + " call sites");
+        for(InlineCache site : sites)
+            out.println(String.format("  %-48s %-20s %10d misses",
+                    site.name + " "
+                    + site.calleeType.toMethodDescriptorString(),
+                    site.getState(), site.misses));
+    }
+}
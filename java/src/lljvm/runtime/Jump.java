@@ -22,30 +22,47 @@
 
 package lljvm.runtime;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * Provides support for setjmp/longjmp.
  * 
+ * <p>Each call to setjmp is identified by the ID of the frame it was made
+ * from, which is generated by the first call to setjmp in that frame, and
+ * the index of the call within the frame, which is chosen by the backend.
+ * longjmp throws the Jump belonging to the current thread, so that no
+ * objects are allocated, and each frame calling setjmp catches it and
+ * compares the frame ID to its own before switching on the index.</p>
+ * 
+ * <p>The jmp_buf holds the frame ID, the index, and the stack pointer, frame
+ * pointer and stack depth at the time of the call, so that longjmp can
+ * restore the stack directly.</p>
+ * 
  * @author  David Roberts
  */
 @SuppressWarnings("serial")
 public class Jump extends RuntimeException {
-    /** The number of setjmp calls that have been made so far */
-    private static int numJumps = 0;
+    /** Source of frame IDs, which are never zero */
+    private static final AtomicInteger nextId = new AtomicInteger();
+    /** The Jump thrown by longjmp in each thread */
+    private static final ThreadLocal<Jump> jumps = new ThreadLocal<Jump>() {
+        protected Jump initialValue() {
+            return new Jump();
+        }
+    };
     
-    /** The ID of this Jump */
-    public final int id;
+    /** The ID of the frame containing the target of this Jump */
+    public int id;
+    /** The index of the target of this Jump within its frame */
+    public int site;
     /** The return value of this Jump */
-    public final int value;
+    public int value;
     
     /**
-     * Create a new Jump with the given ID and return value.
-     * 
-     * @param id     the ID
-     * @param value  the return value
+     * Create a new Jump, without a stack trace.
      */
-    private Jump(int id, int value) {
-        this.id = id;
-        this.value = (value == 0 ? 1 : value);
+    private Jump() {
+        super(null, null, false, false);
     }
     
     /**
@@ -59,17 +76,33 @@ public class Jump extends RuntimeException {
     /**
      * Save the stack context in env for later use by longjmp.
      * 
-     * @param env  where to store the stack context
-     * @return     the unique ID of this jump target
+     * @param env   where to store the stack context
+     * @param id    the ID of the calling frame, or zero if the frame has not
+     *              called setjmp before
+     * @param site  the index of the call within the calling frame
+     * @return      the ID of the calling frame
      */
-    public static int setjmp(int env) {
-        int id = ++numJumps;
-        int stackDepth = Memory.getStackDepth();
+    public static int setjmp(int env, int id, int site) {
+        while(id == 0)
+            id = nextId.incrementAndGet();
         Memory.store(env, id);
-        Memory.store(env+4, stackDepth);
+        Memory.store(env+4, site);
+        Memory.store(env+8, Memory.getStackPointer());
+        Memory.store(env+12, Memory.getFramePointer());
+        Memory.store(env+16, Memory.getStackDepth());
         return id;
     }
     
+    /**
+     * Save the stack context in env for later use by longjmp.
+     * 
+     * @param env  where to store the stack context
+     * @return     a new frame ID
+     */
+    public static int setjmp(int env) {
+        return setjmp(env, 0, 0);
+    }
+    
     /**
      * Jump to the last call of setjmp with the corresponding env argument,
      * causing setjmp to return the given value.
@@ -79,9 +112,13 @@ public class Jump extends RuntimeException {
      * @param val  the return value
      */
     public static void longjmp(int env, int val) {
-        int id = Memory.load_i32(env);
-        int stackDepth = Memory.load_i32(env+4);
-        Memory.destroyStackFrames(Memory.getStackDepth() - stackDepth);
-        throw new Jump(id, val);
+        final Jump jump = jumps.get();
+        jump.id = Memory.load_i32(env);
+        jump.site = Memory.load_i32(env+4);
+        jump.value = (val == 0 ? 1 : val);
+        Memory.restoreStack(Memory.load_i32(env+8),
+                            Memory.load_i32(env+12),
+                            Memory.load_i32(env+16));
+        throw jump;
     }
 }
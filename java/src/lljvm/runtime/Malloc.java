@@ -0,0 +1,882 @@
+/*
+* Copyright (c) 2009 David Roberts <d@vidr.cc>
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+*/
+
+package lljvm.runtime;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.TreeSet;
+
+/**
+ * Provides the C dynamic memory allocation routines, replacing those of the
+ * C Standard Library.
+ * 
+ * <p>Requests of up to 16 KiB are rounded up to one of a set of size
+ * classes. Each class carves blocks out of spans of pages reserved for it,
+ * and keeps freed blocks on a free list for reuse by the same class. Larger
+ * requests are given runs of whole pages, which are coalesced with
+ * neighbouring free runs when freed, and returned to the system when enough
+ * free memory accumulates at the top of the heap.</p>
+ * 
+ * <p>All allocator metadata (free lists, page descriptors and statistics)
+ * is held in Java arrays rather than in virtual memory, so allocated blocks
+ * have no headers, and blocks carved from memory fresh from
+ * {@link Memory#sbrk(int)} are known to be zero, so calloc doesn't need to
+ * clear them.</p>
+ * 
+ * @author  David Roberts
+ */
+public final class Malloc {
+    private static final int PAGE_SHIFT = 12; // 4 KiB pages
+    private static final int PAGE_SIZE = 1<<PAGE_SHIFT;
+    
+    /** Alignment of allocated blocks */
+    private static final int ALIGNMENT = 16;
+    /** Largest request served from a size class */
+    private static final int MAX_SMALL = 16<<10;
+    /** Minimum number of pages in a span */
+    private static final int SPAN_PAGES = 16;
+    /** Minimum number of blocks in a span */
+    private static final int SPAN_BLOCKS = 8;
+    /** Minimum number of pages to request from the system at once */
+    private static final int GROW_PAGES = 256;
+    /** Number of free pages at the top of the heap that triggers a trim */
+    private static final int TRIM_PAGES = 1024;
+    /** Free runs shorter than this many pages are kept in exact-size bins */
+    private static final int BINS = 64;
+    
+    /** Page descriptor for the first and last pages of a free run */
+    private static final int FREE_RUN = -2;
+    /** Page descriptor for the first page of an allocated run */
+    private static final int LARGE_RUN = -1;
+    
+    /** Block size of each size class */
+    private static final int[] classSize;
+    /** Size class of each request size, indexed by (size + 15) / 16 */
+    private static final byte[] sizeClass;
+    
+    static {
+        // classes are spaced 16 bytes apart up to 256 bytes, and then four
+        // to each power of two
+        final int[] sizes = new int[64];
+        int n = 0;
+        for(int size = ALIGNMENT; size <= 256; size += ALIGNMENT)
+            sizes[n++] = size;
+        for(int base = 256; base < MAX_SMALL; base *= 2)
+            for(int size = base + base/4; size <= 2 * base; size += base/4)
+                sizes[n++] = size;
+        classSize = Arrays.copyOf(sizes, n);
+        sizeClass = new byte[(MAX_SMALL >> 4) + 1];
+        for(int i = 0, c = 0; i < sizeClass.length; i++) {
+            while(classSize[c] < i << 4)
+                c++;
+            sizeClass[i] = (byte) c;
+        }
+    }
+    
+    /** Address of the first page of the heap, or -1 if not yet created */
+    private static int base = -1;
+    /** Number of pages obtained from the system */
+    private static int pageCount = 0;
+    /** Pages from this one onwards have never been allocated */
+    private static int virginPage = 0;
+    /** Whether the last run allocated was known to be zero-filled */
+    private static boolean lastRunZero;
+    /**
+     * Descriptor of each page: the size class plus one for pages in a span,
+     * LARGE_RUN or FREE_RUN at the start of a run, and zero otherwise.
+     */
+    private static int[] pageClass = new int[0];
+    /** Length in pages of the run starting or ending at each page */
+    private static int[] runPages = new int[0];
+    /** Next and previous free runs in the same bin, indexed by first page */
+    private static int[] runNext = new int[0], runPrev = new int[0];
+    /** First free run of each length shorter than BINS pages, or -1 */
+    private static final int[] binHead = new int[BINS];
+    /** Bit n is set if and only if the bin for n pages is non-empty */
+    private static long binMap = 0;
+    static {
+        Arrays.fill(binHead, -1);
+    }
+    /**
+     * Free runs of at least BINS pages, each encoded as its length followed
+     * by its first page
+     */
+    private static final TreeSet<Long> freeRuns = new TreeSet<Long>();
+    /** Number of free runs */
+    private static int freeRunCount = 0;
+    
+    /** Free blocks of each size class */
+    private static final int[][] freeBlocks = new int[classSize.length][];
+    /** Number of free blocks of each size class */
+    private static final int[] freeCount = new int[classSize.length];
+    /** Next unused block in the current span of each size class */
+    private static final int[] spanNext = new int[classSize.length];
+    /** End of the current span of each size class */
+    private static final int[] spanEnd = new int[classSize.length];
+    /** Whether the current span of each size class is zero-filled */
+    private static final boolean[] spanZero = new boolean[classSize.length];
+    
+    /** Number of calls to malloc, calloc, realloc and memalign */
+    private static long allocations = 0;
+    /** Number of calls to free */
+    private static long frees = 0;
+    /** Number of calloc requests that did not need clearing */
+    private static long zeroHits = 0;
+    /** Number of calloc requests */
+    private static long zeroRequests = 0;
+    /** Number of bytes in allocated blocks */
+    private static int inUse = 0;
+    /** Largest value of inUse */
+    private static int maxInUse = 0;
+    /** Largest number of pages obtained from the system */
+    private static int maxPageCount = 0;
+    /** Number of blocks on the free lists */
+    private static int freeSmallBlocks = 0;
+    /** Number of bytes in blocks on the free lists */
+    private static int freeSmallBytes = 0;
+    
+    /**
+     * Prevent this class from being instantiated.
+     */
+    private Malloc() {}
+    
+    /**
+     * Returns the address of the given page.
+     * 
+     * @param page  the page number
+     * @return      the address of the page
+     */
+    private static int address(int page) {
+        return base + (page << PAGE_SHIFT);
+    }
+    
+    /**
+     * Returns the page containing the given allocated block.
+     * 
+     * @param ptr  a pointer to the block
+     * @return     the page number
+     * @throws Memory.SegmentationFault
+     *              if ptr was not returned by this allocator
+     */
+    private static int pageOf(int ptr) {
+        final int page = (ptr - base) >> PAGE_SHIFT;
+        if(base < 0 || ptr < base || page >= pageCount)
+            throw new Memory.SegmentationFault(ptr);
+        return page;
+    }
+    
+    /**
+     * Record that the given number of bytes have been allocated.
+     * 
+     * @param size  the number of bytes
+     */
+    private static void used(int size) {
+        inUse += size;
+        if(inUse > maxInUse)
+            maxInUse = inUse;
+    }
+    
+    /**
+     * Set errno to ENOMEM.
+     * 
+     * @return  NULL
+     */
+    private static int outOfMemory() {
+        Error.errno(Error.ENOMEM);
+        return Memory.NULL;
+    }
+    
+    /**
+     * Add the given run to the free runs.
+     * 
+     * @param page  the first page of the run
+     * @param n     the number of pages in the run
+     */
+    private static void addFreeRun(int page, int n) {
+        pageClass[page] = pageClass[page + n - 1] = FREE_RUN;
+        runPages[page] = runPages[page + n - 1] = n;
+        freeRunCount++;
+        if(n >= BINS) {
+            freeRuns.add(((long) n << 32) | page);
+            return;
+        }
+        final int next = binHead[n];
+        runNext[page] = next;
+        runPrev[page] = -1;
+        if(next >= 0)
+            runPrev[next] = page;
+        binHead[n] = page;
+        binMap |= 1L << n;
+    }
+    
+    /**
+     * Remove the given run from the free runs.
+     * 
+     * @param page  the first page of the run
+     * @param n     the number of pages in the run
+     */
+    private static void removeFreeRun(int page, int n) {
+        freeRunCount--;
+        if(n >= BINS) {
+            freeRuns.remove(((long) n << 32) | page);
+        } else {
+            final int next = runNext[page], prev = runPrev[page];
+            if(prev >= 0)
+                runNext[prev] = next;
+            else if((binHead[n] = next) < 0)
+                binMap &= ~(1L << n);
+            if(next >= 0)
+                runPrev[next] = prev;
+        }
+        pageClass[page] = pageClass[page + n - 1] = 0;
+    }
+    
+    /**
+     * Free the given run, coalescing it with any neighbouring free runs.
+     * 
+     * @param page  the first page of the run
+     * @param n     the number of pages in the run
+     */
+    private static void releaseRun(int page, int n) {
+        if(page > 0 && pageClass[page - 1] == FREE_RUN) {
+            final int len = runPages[page - 1];
+            removeFreeRun(page - len, len);
+            page -= len;
+            n += len;
+        }
+        if(page + n < pageCount && pageClass[page + n] == FREE_RUN) {
+            final int len = runPages[page + n];
+            removeFreeRun(page + n, len);
+            n += len;
+        }
+        addFreeRun(page, n);
+    }
+    
+    /**
+     * Obtain at least n more pages from the system, adding them to the free
+     * runs.
+     * 
+     * @param n  the minimum number of pages to obtain
+     * @return   true on success
+     */
+    private static boolean grow(int n) {
+        int brk = Memory.sbrk(0);
+        if(base < 0)
+            base = (brk + PAGE_SIZE - 1) & -PAGE_SIZE;
+        // skip over any memory obtained from sbrk by someone else
+        final int pad = (PAGE_SIZE - (brk - base)) & (PAGE_SIZE - 1);
+        if(pad != 0 && Memory.sbrk(pad) == -1)
+            return false;
+        brk += pad;
+        final int first = (brk - base) >> PAGE_SHIFT;
+        int pages = java.lang.Math.max(n, GROW_PAGES);
+        if(Memory.sbrk(pages << PAGE_SHIFT) == -1) {
+            pages = n;
+            if(Memory.sbrk(pages << PAGE_SHIFT) == -1)
+                return false;
+        }
+        pageCount = first + pages;
+        if(pageCount > maxPageCount)
+            maxPageCount = pageCount;
+        if(pageClass.length < pageCount) {
+            final int length =
+                java.lang.Math.max(pageCount, pageClass.length * 2);
+            pageClass = Arrays.copyOf(pageClass, length);
+            runPages = Arrays.copyOf(runPages, length);
+            runNext = Arrays.copyOf(runNext, length);
+            runPrev = Arrays.copyOf(runPrev, length);
+        }
+        releaseRun(first, pages);
+        return true;
+    }
+    
+    /**
+     * Find the smallest free run of at least n pages.
+     * 
+     * @param n  the number of pages
+     * @return   the first page of the run, or -1 if there is none
+     */
+    private static int findFreeRun(int n) {
+        if(n < BINS) {
+            final long bins = binMap & (-1L << n);
+            if(bins != 0)
+                return binHead[Long.numberOfTrailingZeros(bins)];
+        }
+        final Long fit = freeRuns.ceiling((long) n << 32);
+        return fit == null ? -1 : (int) fit.longValue();
+    }
+    
+    /**
+     * Allocate a run of n pages.
+     * 
+     * @param n  the number of pages
+     * @return   the first page of the run, or -1 if there is not enough
+     *           memory
+     */
+    private static int allocateRun(int n) {
+        int page = findFreeRun(n);
+        if(page < 0) {
+            // the run at the top of the heap can be extended
+            int top = 0;
+            if(pageCount > 0 && pageClass[pageCount - 1] == FREE_RUN)
+                top = runPages[pageCount - 1];
+            if(!grow(n - top))
+                return -1;
+            page = findFreeRun(n);
+            if(page < 0) {
+                // the new pages were not contiguous with the top run
+                if(!grow(n))
+                    return -1;
+                page = findFreeRun(n);
+            }
+        }
+        final int len = runPages[page];
+        removeFreeRun(page, len);
+        if(len > n)
+            addFreeRun(page + n, len - n);
+        lastRunZero = page >= virginPage;
+        if(page + n > virginPage)
+            virginPage = page + n;
+        return page;
+    }
+    
+    /**
+     * Return free memory at the top of the heap to the system, keeping at
+     * most pad bytes of it.
+     * 
+     * @param pad  the number of free bytes to keep
+     * @return     true if any memory was returned
+     */
+    private static boolean trim(int pad) {
+        if(pageCount == 0 || pageClass[pageCount - 1] != FREE_RUN
+        || Memory.sbrk(0) != address(pageCount))
+            return false;
+        final int len = runPages[pageCount - 1];
+        final int n = len - ((pad + PAGE_SIZE - 1) >>> PAGE_SHIFT);
+        if(n <= 0)
+            return false;
+        final int page = pageCount - len;
+        removeFreeRun(page, len);
+        if(Memory.sbrk(-(n << PAGE_SHIFT)) == -1) {
+            addFreeRun(page, len);
+            return false;
+        }
+        pageCount -= n;
+        if(len > n)
+            addFreeRun(page, len - n);
+        // memory returned to the system is zero-filled when obtained again
+        if(virginPage > pageCount)
+            virginPage = pageCount;
+        return true;
+    }
+    
+    /**
+     * Start a new span for the given size class.
+     * 
+     * @param c  the size class
+     * @return   true on success
+     */
+    private static boolean newSpan(int c) {
+        final int pages = java.lang.Math.max(SPAN_PAGES,
+                (classSize[c] * SPAN_BLOCKS + PAGE_SIZE - 1) >>> PAGE_SHIFT);
+        final int page = allocateRun(pages);
+        if(page < 0)
+            return false;
+        Arrays.fill(pageClass, page, page + pages, c + 1);
+        spanNext[c] = address(page);
+        spanEnd[c] = address(page + pages);
+        spanZero[c] = lastRunZero;
+        return true;
+    }
+    
+    /**
+     * Allocate a block of the given size class.
+     * 
+     * @param c     the size class
+     * @param size  the number of bytes requested
+     * @param zero  whether the first size bytes of the block must be zero
+     * @return      a pointer to the block, or NULL if there is not enough
+     *              memory
+     */
+    private static int allocateSmall(int c, int size, boolean zero) {
+        final int blockSize = classSize[c];
+        final int addr;
+        boolean isZero = false;
+        if(freeCount[c] > 0) {
+            addr = freeBlocks[c][--freeCount[c]];
+            freeSmallBlocks--;
+            freeSmallBytes -= blockSize;
+        } else {
+            if(spanEnd[c] - spanNext[c] < blockSize && !newSpan(c))
+                return outOfMemory();
+            addr = spanNext[c];
+            spanNext[c] += blockSize;
+            isZero = spanZero[c];
+        }
+        used(blockSize);
+        if(zero)
+            clear(addr, size, isZero);
+        return addr;
+    }
+    
+    /**
+     * Allocate a run of pages large enough for the given number of bytes.
+     * 
+     * @param size  the number of bytes requested
+     * @param zero  whether the block must be zero-filled
+     * @return      a pointer to the block, or NULL if there is not enough
+     *              memory
+     */
+    private static int allocateLarge(int size, boolean zero) {
+        final int n = (int) ((size + (long) PAGE_SIZE - 1) >>> PAGE_SHIFT);
+        final int page = allocateRun(n);
+        if(page < 0)
+            return outOfMemory();
+        pageClass[page] = LARGE_RUN;
+        runPages[page] = n;
+        used(n << PAGE_SHIFT);
+        final int addr = address(page);
+        if(zero)
+            clear(addr, size, lastRunZero);
+        return addr;
+    }
+    
+    /**
+     * Clear a newly allocated block for calloc, unless it is known to be
+     * zero-filled already.
+     * 
+     * @param addr    a pointer to the block
+     * @param size    the number of bytes to clear
+     * @param isZero  whether the block is known to be zero-filled
+     */
+    private static void clear(int addr, int size, boolean isZero) {
+        zeroRequests++;
+        if(isZero)
+            zeroHits++;
+        else
+            Memory.zero(addr, size);
+    }
+    
+    /**
+     * Allocate a block of the given size.
+     * 
+     * @param size  the number of bytes requested, as an unsigned integer
+     * @param zero  whether the block must be zero-filled
+     * @return      a pointer to the block, or NULL if there is not enough
+     *              memory
+     */
+    private static int allocate(int size, boolean zero) {
+        allocations++;
+        if(size >= 0 && size <= MAX_SMALL)
+            return allocateSmall(sizeClass[(size + 15) >> 4], size, zero);
+        if(size < 0)
+            return outOfMemory();
+        return allocateLarge(size, zero);
+    }
+    
+    /**
+     * Returns the number of usable bytes in the given allocated block.
+     * 
+     * @param ptr  a pointer to the block
+     * @return     the size of the block
+     */
+    private static int blockSize(int ptr) {
+        final int page = pageOf(ptr);
+        final int desc = pageClass[page];
+        if(desc > 0)
+            return classSize[desc - 1];
+        if(desc == LARGE_RUN && (ptr & (PAGE_SIZE - 1)) == 0)
+            return runPages[page] << PAGE_SHIFT;
+        throw new Memory.SegmentationFault(ptr);
+    }
+    
+    /**
+     * Try to resize the given run of pages in place.
+     * 
+     * @param page  the first page of the run
+     * @param n     the new number of pages
+     * @return      true on success
+     */
+    private static boolean resizeRun(int page, int n) {
+        final int len = runPages[page];
+        if(n == len)
+            return true;
+        if(n < len) {
+            runPages[page] = n;
+            releaseRun(page + n, len - n);
+            inUse -= (len - n) << PAGE_SHIFT;
+            return true;
+        }
+        final int next = page + len;
+        if(next == pageCount && !grow(n - len))
+            return false;
+        if(pageClass[next] != FREE_RUN || runPages[next] < n - len)
+            return false;
+        final int free = runPages[next];
+        removeFreeRun(next, free);
+        if(free > n - len)
+            addFreeRun(page + n, free - (n - len));
+        if(page + n > virginPage)
+            virginPage = page + n;
+        runPages[page] = n;
+        used((n - len) << PAGE_SHIFT);
+        return true;
+    }
+    
+    /**
+     * Allocate size bytes of memory.
+     * 
+     * @param size  the number of bytes to allocate
+     * @return      a pointer to the allocated memory, or NULL if the request
+     *              fails
+     */
+    public static int malloc(int size) {
+        return allocate(size, false);
+    }
+    
+    /**
+     * Free the given allocated memory.
+     * 
+     * @param ptr  a pointer to the memory to free, or NULL
+     */
+    public static void free(int ptr) {
+        if(ptr == Memory.NULL)
+            return;
+        frees++;
+        final int page = pageOf(ptr);
+        final int desc = pageClass[page];
+        if(desc > 0) {
+            final int c = desc - 1;
+            int[] blocks = freeBlocks[c];
+            if(blocks == null)
+                blocks = freeBlocks[c] = new int[64];
+            else if(freeCount[c] == blocks.length)
+                blocks = freeBlocks[c] =
+                    Arrays.copyOf(blocks, blocks.length * 2);
+            blocks[freeCount[c]++] = ptr;
+            freeSmallBlocks++;
+            freeSmallBytes += classSize[c];
+            inUse -= classSize[c];
+        } else if(desc == LARGE_RUN && (ptr & (PAGE_SIZE - 1)) == 0) {
+            final int n = runPages[page];
+            inUse -= n << PAGE_SHIFT;
+            releaseRun(page, n);
+            if(pageClass[pageCount - 1] == FREE_RUN
+            && runPages[pageCount - 1] >= TRIM_PAGES)
+                trim(GROW_PAGES << PAGE_SHIFT);
+        } else {
+            throw new Memory.SegmentationFault(ptr);
+        }
+    }
+    
+    /**
+     * Allocate zero-filled memory for an array of nmemb elements of size
+     * bytes each.
+     * 
+     * @param nmemb  the number of elements
+     * @param size   the size of each element
+     * @return       a pointer to the allocated memory, or NULL if the request
+     *               fails
+     */
+    public static int calloc(int nmemb, int size) {
+        final long total = (nmemb & 0xffffffffL) * (size & 0xffffffffL);
+        if(total > Integer.MAX_VALUE) {
+            allocations++;
+            return outOfMemory();
+        }
+        return allocate((int) total, true);
+    }
+    
+    /**
+     * Change the size of the given allocated memory to size bytes. The
+     * contents are unchanged up to the smaller of the old and new sizes.
+     * 
+     * @param ptr   a pointer to the memory, or NULL to allocate new memory
+     * @param size  the new size. If zero and ptr is not NULL, the memory is
+     *              freed.
+     * @return      a pointer to the reallocated memory, or NULL if the
+     *              request fails
+     */
+    public static int realloc(int ptr, int size) {
+        if(ptr == Memory.NULL)
+            return malloc(size);
+        if(size == 0) {
+            free(ptr);
+            return Memory.NULL;
+        }
+        final int oldSize = blockSize(ptr);
+        if(size > 0 && size <= oldSize && size >= oldSize / 2)
+            return ptr;
+        if(size > MAX_SMALL && oldSize > MAX_SMALL) {
+            final int n = (int) ((size + (long) PAGE_SIZE - 1) >>> PAGE_SHIFT);
+            if(resizeRun(pageOf(ptr), n))
+                return ptr;
+        }
+        final int newPtr = allocate(size, false);
+        if(newPtr == Memory.NULL)
+            return Memory.NULL;
+        Memory.memcpy(newPtr, ptr,
+                java.lang.Math.min(oldSize, size), ALIGNMENT);
+        free(ptr);
+        return newPtr;
+    }
+    
+    /**
+     * Allocate size bytes of memory, aligned to a multiple of the given
+     * boundary.
+     * 
+     * @param boundary  the alignment, which is rounded up to a power of two
+     * @param size      the number of bytes to allocate
+     * @return          a pointer to the allocated memory, or NULL if the
+     *                  request fails
+     */
+    public static int memalign(int boundary, int size) {
+        if(boundary <= ALIGNMENT)
+            return malloc(size);
+        if(boundary < 0 || boundary > 1<<30)
+            return outOfMemory();
+        boundary = Integer.highestOneBit(boundary - 1) << 1;
+        if(size >= 0 && size <= MAX_SMALL && boundary <= PAGE_SIZE) {
+            // spans are page-aligned, so blocks of a class whose size is a
+            // multiple of the boundary are suitably aligned
+            int c = sizeClass[(size + 15) >> 4];
+            while(classSize[c] % boundary != 0)
+                c++;
+            allocations++;
+            return allocateSmall(c, size, false);
+        }
+        allocations++;
+        if(size < 0)
+            return outOfMemory();
+        final int n = java.lang.Math.max(1,
+                (int) ((size + (long) PAGE_SIZE - 1) >>> PAGE_SHIFT));
+        final int extra = java.lang.Math.max(boundary >>> PAGE_SHIFT, 1) - 1;
+        if(n + extra >= 1<<(31 - PAGE_SHIFT))
+            return outOfMemory();
+        final int ptr = allocateLarge((n + extra) << PAGE_SHIFT, false);
+        if(ptr == Memory.NULL)
+            return Memory.NULL;
+        // release the pages before and after the aligned run
+        final int page = pageOf(ptr);
+        final int head = (((ptr + boundary - 1) & -boundary) - ptr)
+                >>> PAGE_SHIFT;
+        if(head > 0) {
+            pageClass[page] = 0;
+            pageClass[page + head] = LARGE_RUN;
+            runPages[page + head] = n + extra - head;
+            releaseRun(page, head);
+            inUse -= head << PAGE_SHIFT;
+        }
+        resizeRun(page + head, n);
+        return address(page + head);
+    }
+    
+    /**
+     * Allocate size bytes of page-aligned memory.
+     * 
+     * @param size  the number of bytes to allocate
+     * @return      a pointer to the allocated memory, or NULL if the request
+     *              fails
+     */
+    public static int valloc(int size) {
+        return memalign(PAGE_SIZE, size);
+    }
+    
+    /**
+     * Allocate size bytes of page-aligned memory, rounded up to a multiple
+     * of the page size.
+     * 
+     * @param size  the number of bytes to allocate
+     * @return      a pointer to the allocated memory, or NULL if the request
+     *              fails
+     */
+    public static int pvalloc(int size) {
+        return memalign(PAGE_SIZE, (size + PAGE_SIZE - 1) & -PAGE_SIZE);
+    }
+    
+    /**
+     * Free the given allocated memory.
+     * 
+     * @param ptr  a pointer to the memory to free, or NULL
+     */
+    public static void cfree(int ptr) {
+        free(ptr);
+    }
+    
+    /**
+     * Returns the number of usable bytes in the given allocated memory.
+     * 
+     * @param ptr  a pointer to the memory
+     * @return     the number of usable bytes, or 0 if ptr is NULL
+     */
+    public static int malloc_usable_size(int ptr) {
+        if(ptr == Memory.NULL)
+            return 0;
+        return blockSize(ptr);
+    }
+    
+    /**
+     * Return free memory at the top of the heap to the system.
+     * 
+     * @param pad  the number of free bytes to keep
+     * @return     1 if any memory was returned, 0 otherwise
+     */
+    public static int malloc_trim(int pad) {
+        return trim(pad) ? 1 : 0;
+    }
+    
+    /**
+     * Set a parameter of the allocator. No parameters are supported.
+     * 
+     * @param param  the parameter to set
+     * @param value  the new value of the parameter
+     * @return       0, as the parameter was not set
+     */
+    public static int mallopt(int param, int value) {
+        return 0;
+    }
+    
+    /**
+     * Store allocation statistics in a struct mallinfo.
+     * 
+     * @param info  a pointer to the struct mallinfo in which to store the
+     *              statistics
+     */
+    public static void mallinfo(int info) {
+        final int arena = pageCount << PAGE_SHIFT;
+        int keepcost = 0;
+        if(pageCount > 0 && pageClass[pageCount - 1] == FREE_RUN)
+            keepcost = runPages[pageCount - 1] << PAGE_SHIFT;
+        Memory.store(info,      arena);            // arena
+        Memory.store(info + 4,  freeRunCount);  // ordblks
+        Memory.store(info + 8,  freeSmallBlocks);  // smblks
+        Memory.store(info + 12, 0);                // hblks
+        Memory.store(info + 16, 0);                // hblkhd
+        Memory.store(info + 20, maxInUse);         // usmblks
+        Memory.store(info + 24, freeSmallBytes);   // fsmblks
+        Memory.store(info + 28, inUse);            // uordblks
+        Memory.store(info + 32, arena - inUse);    // fordblks
+        Memory.store(info + 36, keepcost);         // keepcost
+    }
+    
+    /**
+     * Print allocation statistics to the given stream.
+     * 
+     * @param out  the stream to print to
+     */
+    public static void printStatistics(PrintStream out) {
+        out.println(String.format("max system bytes = %10d",
+                (long) maxPageCount << PAGE_SHIFT));
+        out.println(String.format("system bytes     = %10d",
+                (long) pageCount << PAGE_SHIFT));
+        out.println(String.format("in use bytes     = %10d", inUse));
+        out.println(String.format("max in use bytes = %10d", maxInUse));
+        out.println(String.format("allocations      = %10d", allocations));
+        out.println(String.format("frees            = %10d", frees));
+        out.println(String.format("free small bytes = %10d", freeSmallBytes));
+        out.println(String.format("free runs        = %10d", freeRunCount));
+        out.println(String.format("calloc no clear  = %10d / %d",
+                zeroHits, zeroRequests));
+        for(int c = 0; c < classSize.length; c++)
+            if(spanEnd[c] != 0)
+                out.println(String.format("  class %5d: %8d free blocks",
+                        classSize[c], freeCount[c]));
+    }
+    
+    /**
+     * Print allocation statistics to standard error.
+     */
+    public static void malloc_stats() {
+        printStatistics(java.lang.System.err);
+    }
+    
+    /**
+     * Print allocation statistics to standard error, preceded by the given
+     * message.
+     * 
+     * @param s  a pointer to the message
+     */
+    public static void mstats(int s) {
+        java.lang.System.err.println("Memory allocation statistics "
+                + Memory.load_string(s));
+        malloc_stats();
+    }
+    
+    // Reentrant versions, as called from within the C Standard Library
+    
+    public static int _malloc_r(int reent, int size) {
+        return malloc(size);
+    }
+    
+    public static void _free_r(int reent, int ptr) {
+        free(ptr);
+    }
+    
+    public static int _calloc_r(int reent, int nmemb, int size) {
+        return calloc(nmemb, size);
+    }
+    
+    public static int _realloc_r(int reent, int ptr, int size) {
+        return realloc(ptr, size);
+    }
+    
+    public static int _memalign_r(int reent, int boundary, int size) {
+        return memalign(boundary, size);
+    }
+    
+    public static int _valloc_r(int reent, int size) {
+        return valloc(size);
+    }
+    
+    public static int _pvalloc_r(int reent, int size) {
+        return pvalloc(size);
+    }
+    
+    public static void _cfree_r(int reent, int ptr) {
+        free(ptr);
+    }
+    
+    public static int _malloc_usable_size_r(int reent, int ptr) {
+        return malloc_usable_size(ptr);
+    }
+    
+    public static int _malloc_trim_r(int reent, int pad) {
+        return malloc_trim(pad);
+    }
+    
+    public static int _mallopt_r(int reent, int param, int value) {
+        return mallopt(param, value);
+    }
+    
+    public static void _mallinfo_r(int info, int reent) {
+        mallinfo(info);
+    }
+    
+    public static void _malloc_stats_r(int reent) {
+        malloc_stats();
+    }
+    
+    public static void _mstats_r(int reent, int s) {
+        mstats(s);
+    }
+}
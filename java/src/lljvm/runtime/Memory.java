@@ -22,33 +22,65 @@
 
 package lljvm.runtime;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.util.Arrays;
+import java.nio.charset.StandardCharsets;
 
+import lljvm.memory.CachedMemoryEngine;
+import lljvm.memory.FlatMemoryEngine;
+import lljvm.memory.InstrumentedMemoryEngine;
+import lljvm.memory.MemoryEngine;
+import lljvm.memory.MemoryLayout;
+import lljvm.memory.PagedMemoryEngine;
+import lljvm.memory.UncheckedMemoryEngine;
 import lljvm.util.ReflectionUtils;
 
 /**
  * Virtual memory, with methods for storing/loading values to/from
  * specified addresses.
  * 
+ * <p>The sizes of the address space, data segment, stack and pages are read
+ * at startup, as described by {@link MemoryLayout}.</p>
+ * 
+ * <p>The storage backing virtual memory is provided by a
+ * {@link MemoryEngine}, selected at startup by the
+ * <code>lljvm.memory.engine</code> property:</p>
+ * <ul>
+ * <li><code>paged</code> (the default) allocates memory one page at a time,
+ *     as it is mapped;</li>
+ * <li><code>cached</code> is like <code>paged</code>, but remembers the
+ *     pages last loaded from and stored to, so that runs of accesses to
+ *     the same page skip the page table;</li>
+ * <li><code>flat</code> backs the whole address space with a single
+ *     contiguous region;</li>
+ * <li><code>unchecked</code> is like <code>flat</code>, but does not check
+ *     that accessed addresses have been mapped;</li>
+ * <li><code>instrumented:</code><i>engine</i> counts the accesses made to
+ *     the given engine (<code>paged</code> by default), printing them on
+ *     exit;</li>
+ * <li>the binary name of any other class implementing
+ *     {@link MemoryEngine}, with a public constructor taking the size of
+ *     the address space.</li>
+ * </ul>
+ * 
+ * <p>The engine is held in a static final field, so once the JIT has
+ * compiled a call site it is bound to the selected engine, and the engine's
+ * accessors are inlined into the caller. Compiled programs therefore run
+ * with any engine without being recompiled.</p>
+ * 
  * @author  David Roberts
  */
 public final class Memory {
     private static final int ALIGNMENT = 8; // 8-byte alignment
-    private static final int MEM_SIZE = 1<<30; // 1 GiB of virtual memory
-    private static final int DATA_SIZE = 1<<20; // 1 MiB Data+BSS
-    private static final int STACK_SIZE = 1<<20; // 1 MiB stack
     
-    // 64 KiB pages
-    private static final int PAGE_SHIFT = 16;
-    private static final int PAGE_SIZE = 1<<PAGE_SHIFT;
+    /** The configured layout of the address space */
+    private static final MemoryLayout layout = new MemoryLayout();
+    private static final int MEM_SIZE = layout.getSize();
+    private static final int DATA_SIZE = layout.getDataSize(); // Data+BSS
+    private static final int STACK_SIZE = layout.getStackSize();
+    private static final int PAGE_SHIFT = layout.getPageShift();
     
-    private static final ByteOrder ENDIANNESS = ByteOrder.LITTLE_ENDIAN;
-    
-    /** Array of pages */
-    private static final ByteBuffer[] pages =
-        new ByteBuffer[MEM_SIZE>>>PAGE_SHIFT];
+    /** The engine backing virtual memory */
+    private static final MemoryEngine engine = createEngine(
+            layout.getProperty("lljvm.memory.engine", "paged"));
     /** Current end of Data+BSS */
     private static int dataEnd = 0;
     /** Current end of the heap */
@@ -64,14 +96,8 @@ public final class Memory {
     public static final int NULL = allocateData();
     
     static {
-        final int DATA_BOTTOM = 0>>>PAGE_SHIFT;
-        final int DATA_END = (DATA_SIZE - 1)>>>PAGE_SHIFT;
-        for(int i = DATA_BOTTOM; i <= DATA_END; i++)
-            pages[i] = createPage();
-        final int STACK_BOTTOM = (MEM_SIZE - STACK_SIZE)>>>PAGE_SHIFT;
-        final int STACK_END = (MEM_SIZE - 1)>>>PAGE_SHIFT;
-        for(int i = STACK_BOTTOM; i <= STACK_END; i++)
-            pages[i] = createPage();
+        engine.map(0, DATA_SIZE);
+        engine.map(MEM_SIZE - STACK_SIZE, STACK_SIZE);
     }
     
     /**
@@ -91,35 +117,61 @@ public final class Memory {
     private Memory() {}
     
     /**
-     * Create a new page.
-     * @return  the new page
+     * Create the memory engine with the given name.
+     * 
+     * @param name  the name of the engine
+     * @return      the new engine
      */
-    private static ByteBuffer createPage() {
-        return ByteBuffer.allocateDirect(PAGE_SIZE).order(ENDIANNESS);
+    private static MemoryEngine createEngine(String name) {
+        if(name.equals("paged"))
+            return new PagedMemoryEngine(MEM_SIZE, PAGE_SHIFT);
+        if(name.equals("cached"))
+            return new CachedMemoryEngine(MEM_SIZE, PAGE_SHIFT);
+        if(name.equals("flat"))
+            return new FlatMemoryEngine(MEM_SIZE);
+        if(name.equals("unchecked"))
+            return new UncheckedMemoryEngine(MEM_SIZE);
+        if(name.equals("instrumented"))
+            return new InstrumentedMemoryEngine(createEngine("paged"));
+        if(name.startsWith("instrumented:"))
+            return new InstrumentedMemoryEngine(
+                    createEngine(name.substring(name.indexOf(':') + 1)));
+        if(name.indexOf('.') >= 0)
+            return loadEngine(name);
+        throw new IllegalArgumentException(
+                "Unrecognised memory engine: "+name);
     }
     
     /**
-     * Return the page of the given virtual memory address
+     * Instantiate the memory engine with the given class name.
      * 
-     * @param addr  the virtual memory address
-     * @return      the page of the given virtual memory address
+     * @param name  the binary name of the engine class
+     * @return      the new engine
      */
-    private static ByteBuffer getPage(int addr) {
+    private static MemoryEngine loadEngine(String name) {
         try {
-            return pages[addr>>>PAGE_SHIFT];
-        } catch(ArrayIndexOutOfBoundsException e) {
-            throw new SegmentationFault(addr);
+            return ReflectionUtils.getClass(name)
+                    .asSubclass(MemoryEngine.class)
+                    .getConstructor(int.class).newInstance(MEM_SIZE);
+        } catch(ClassNotFoundException e) {
+            throw new IllegalArgumentException(
+                    "Unable to find memory engine: "+name, e);
+        } catch(ClassCastException e) {
+            throw new IllegalArgumentException(
+                    "Not a memory engine: "+name, e);
+        } catch(ReflectiveOperationException e) {
+            throw new IllegalArgumentException(
+                    "Unable to instantiate memory engine: "+name, e);
         }
     }
-
+    
     /**
-     * Return the offset within the page of the given virtual memory address
+     * Returns the name of the engine backing virtual memory.
      * 
-     * @param addr  the virtual memory address
-     * @return      the offset of the given virtual memory address
+     * @return  the name of the engine backing virtual memory
      */
-    private static int getOffset(int addr) {
-        return addr & (PAGE_SIZE - 1);
+    public static String getEngineName() {
+        return engine.getName();
     }
     
     /**
@@ -184,6 +236,39 @@ public final class Memory {
         return stackDepth;
     }
     
+    /**
+     * Return the current stack pointer.
+     * 
+     * @return  the current stack pointer
+     */
+    public static int getStackPointer() {
+        return stackPointer;
+    }
+    
+    /**
+     * Return the current frame pointer.
+     * 
+     * @return  the current frame pointer
+     */
+    public static int getFramePointer() {
+        return framePointer;
+    }
+    
+    /**
+     * Restore the stack to the state returned by getStackPointer,
+     * getFramePointer and getStackDepth, destroying every stack frame created
+     * since at once.
+     * 
+     * @param sp     the stack pointer
+     * @param fp     the frame pointer
+     * @param depth  the number of stack frames
+     */
+    static void restoreStack(int sp, int fp, int depth) {
+        stackPointer = sp;
+        framePointer = fp;
+        stackDepth = depth;
+    }
+    
     /**
      * Allocate a block of the given size within the data segment.
      * 
@@ -238,12 +323,10 @@ public final class Memory {
         || heapEnd + increment < DATA_SIZE)
             return Error.errno(Error.ENOMEM);
         heapEnd += increment;
-        final int HEAP_BOTTOM = prevHeapEnd>>>PAGE_SHIFT;
-        final int HEAP_END = (heapEnd - 1)>>>PAGE_SHIFT;
-        for(int i = HEAP_BOTTOM; i <= HEAP_END; i++)
-            if(pages[i] == null)
-                pages[i] = createPage();
-        // TODO: destroy pages if increment < 0
+        if(increment > 0)
+            engine.map(prevHeapEnd, increment);
+        else
+            engine.unmap(heapEnd, -increment);
         return prevHeapEnd;
     }
     
@@ -254,11 +337,7 @@ public final class Memory {
      * @param value  the value to be stored
      */
     public static void store(int addr, boolean value) {
-        try {
-            getPage(addr).put(getOffset(addr), (byte) (value ? 1 : 0));
-        } catch(NullPointerException e) {
-            throw new SegmentationFault(addr);
-        }
+        engine.store(addr, (byte) (value ? 1 : 0));
     }
     
     /**
@@ -268,11 +347,7 @@ public final class Memory {
      * @param value  the value to be stored
      */
     public static void store(int addr, byte value) {
-        try {
-            getPage(addr).put(getOffset(addr), value);
-        } catch(NullPointerException e) {
-            throw new SegmentationFault(addr);
-        }
+        engine.store(addr, value);
     }
     
     /**
@@ -282,11 +357,7 @@ public final class Memory {
      * @param value  the value to be stored
      */
     public static void store(int addr, short value) {
-        try {
-            getPage(addr).putShort(getOffset(addr), value);
-        } catch(NullPointerException e) {
-            throw new SegmentationFault(addr);
-        }
+        engine.store(addr, value);
     }
     
     /**
@@ -296,11 +367,7 @@ public final class Memory {
      * @param value  the value to be stored
      */
     public static void store(int addr, int value) {
-        try {
-            getPage(addr).putInt(getOffset(addr), value);
-        } catch(NullPointerException e) {
-            throw new SegmentationFault(addr);
-        }
+        engine.store(addr, value);
     }
     
     /**
@@ -310,11 +377,7 @@ public final class Memory {
      * @param value  the value to be stored
      */
     public static void store(int addr, long value) {
-        try {
-            getPage(addr).putLong(getOffset(addr), value);
-        } catch(NullPointerException e) {
-            throw new SegmentationFault(addr);
-        }
+        engine.store(addr, value);
     }
     
     /**
@@ -324,11 +387,7 @@ public final class Memory {
      * @param value  the value to be stored
      */
     public static void store(int addr, float value) {
-        try {
-            getPage(addr).putFloat(getOffset(addr), value);
-        } catch(NullPointerException e) {
-            throw new SegmentationFault(addr);
-        }
+        engine.store(addr, value);
     }
     
     /**
@@ -338,11 +397,93 @@ public final class Memory {
      * @param value  the value to be stored
      */
     public static void store(int addr, double value) {
-        try {
-            getPage(addr).putDouble(getOffset(addr), value);
-        } catch(NullPointerException e) {
-            throw new SegmentationFault(addr);
-        }
+        engine.store(addr, value);
+    }
+    
+    /**
+     * Store a boolean value at the given offset from the given address.
+     * 
+     * @param base    the base address
+     * @param offset  the offset from the base address at which to store the
+     *                value
+     * @param value   the value to be stored
+     */
+    public static void store(int base, int offset, boolean value) {
+        engine.store(base + offset, (byte) (value ? 1 : 0));
+    }
+    
+    /**
+     * Store a byte at the given offset from the given address.
+     * 
+     * @param base    the base address
+     * @param offset  the offset from the base address at which to store the
+     *                value
+     * @param value   the value to be stored
+     */
+    public static void store(int base, int offset, byte value) {
+        engine.store(base + offset, value);
+    }
+    
+    /**
+     * Store a 16-bit integer at the given offset from the given address.
+     * 
+     * @param base    the base address
+     * @param offset  the offset from the base address at which to store the
+     *                value
+     * @param value   the value to be stored
+     */
+    public static void store(int base, int offset, short value) {
+        engine.store(base + offset, value);
+    }
+    
+    /**
+     * Store a 32-bit integer at the given offset from the given address.
+     * 
+     * @param base    the base address
+     * @param offset  the offset from the base address at which to store the
+     *                value
+     * @param value   the value to be stored
+     */
+    public static void store(int base, int offset, int value) {
+        engine.store(base + offset, value);
+    }
+    
+    /**
+     * Store a 64-bit integer at the given offset from the given address.
+     * 
+     * @param base    the base address
+     * @param offset  the offset from the base address at which to store the
+     *                value
+     * @param value   the value to be stored
+     */
+    public static void store(int base, int offset, long value) {
+        engine.store(base + offset, value);
+    }
+    
+    /**
+     * Store a single precision floating point number at the given offset
+     * from the given address.
+     * 
+     * @param base    the base address
+     * @param offset  the offset from the base address at which to store the
+     *                value
+     * @param value   the value to be stored
+     */
+    public static void store(int base, int offset, float value) {
+        engine.store(base + offset, value);
+    }
+    
+    /**
+     * Store a double precision floating point number at the given offset
+     * from the given address.
+     * 
+     * @param base    the base address
+     * @param offset  the offset from the base address at which to store the
+     *                value
+     * @param value   the value to be stored
+     */
+    public static void store(int base, int offset, double value) {
+        engine.store(base + offset, value);
     }
     
     /**
@@ -352,9 +493,21 @@ public final class Memory {
      * @param bytes  the bytes to be stored
      */
     public static void store(int addr, byte[] bytes) {
-        // TODO: make more efficient by using put(byte[])
-        for(int i = 0; i < bytes.length; i++)
-            store(addr + i, bytes[i]);
+        engine.store(addr, bytes, 0, bytes.length);
+    }
+    
+    /**
+     * Store an image of part of the data segment at the given offset from
+     * the given address. Each character of the image is stored as one byte,
+     * so the characters must be in the range 0-255.
+     * 
+     * @param base    the base address
+     * @param offset  the offset from the base address at which to store the
+     *                image
+     * @param image   the image to be stored
+     */
+    public static void storeImage(int base, int offset, String image) {
+        store(base + offset, image.getBytes(StandardCharsets.ISO_8859_1));
     }
     
     /**
@@ -639,11 +792,7 @@ public final class Memory {
      * @return      the value at the given address
      */
     public static boolean load_i1(int addr) {
-        try {
-            return getPage(addr).get(getOffset(addr)) != 0;
-        } catch(NullPointerException e) {
-            throw new SegmentationFault(addr);
-        }
+        return engine.load_i8(addr) != 0;
     }
     
     /**
@@ -653,11 +802,7 @@ public final class Memory {
      * @return      the value at the given address
      */
     public static byte load_i8(int addr) {
-        try {
-            return getPage(addr).get(getOffset(addr));
-        } catch(NullPointerException e) {
-            throw new SegmentationFault(addr);
-        }
+        return engine.load_i8(addr);
     }
     
     /**
@@ -667,11 +812,7 @@ public final class Memory {
      * @return      the value at the given address
      */
     public static short load_i16(int addr) {
-        try {
-            return getPage(addr).getShort(getOffset(addr));
-        } catch(NullPointerException e) {
-            throw new SegmentationFault(addr);
-        }
+        return engine.load_i16(addr);
     }
     
     /**
@@ -681,11 +822,7 @@ public final class Memory {
      * @return      the value at the given address
      */
     public static int load_i32(int addr) {
-        try {
-            return getPage(addr).getInt(getOffset(addr));
-        } catch(NullPointerException e) {
-            throw new SegmentationFault(addr);
-        }
+        return engine.load_i32(addr);
     }
     
     /**
@@ -695,11 +832,7 @@ public final class Memory {
      * @return      the value at the given address
      */
     public static long load_i64(int addr) {
-        try {
-            return getPage(addr).getLong(getOffset(addr));
-        } catch(NullPointerException e) {
-            throw new SegmentationFault(addr);
-        }
+        return engine.load_i64(addr);
     }
     
     /**
@@ -709,11 +842,7 @@ public final class Memory {
      * @return      the value at the given address
      */
     public static float load_f32(int addr) {
-        try {
-            return getPage(addr).getFloat(getOffset(addr));
-        } catch(NullPointerException e) {
-            throw new SegmentationFault(addr);
-        }
+        return engine.load_f32(addr);
     }
     
     /**
@@ -723,11 +852,86 @@ public final class Memory {
      * @return      the value at the given address
      */
     public static double load_f64(int addr) {
-        try {
-            return getPage(addr).getDouble(getOffset(addr));
-        } catch(NullPointerException e) {
-            throw new SegmentationFault(addr);
-        }
+        return engine.load_f64(addr);
+    }
+    
+    /**
+     * Load a boolean value from the given offset from the given address.
+     * 
+     * @param base    the base address
+     * @param offset  the offset from the base address of the value
+     * @return        the value at the given address
+     */
+    public static boolean load_i1(int base, int offset) {
+        return engine.load_i8(base + offset) != 0;
+    }
+    
+    /**
+     * Load a byte from the given offset from the given address.
+     * 
+     * @param base    the base address
+     * @param offset  the offset from the base address of the value
+     * @return        the value at the given address
+     */
+    public static byte load_i8(int base, int offset) {
+        return engine.load_i8(base + offset);
+    }
+    
+    /**
+     * Load a 16-bit integer from the given offset from the given address.
+     * 
+     * @param base    the base address
+     * @param offset  the offset from the base address of the value
+     * @return        the value at the given address
+     */
+    public static short load_i16(int base, int offset) {
+        return engine.load_i16(base + offset);
+    }
+    
+    /**
+     * Load a 32-bit integer from the given offset from the given address.
+     * 
+     * @param base    the base address
+     * @param offset  the offset from the base address of the value
+     * @return        the value at the given address
+     */
+    public static int load_i32(int base, int offset) {
+        return engine.load_i32(base + offset);
+    }
+    
+    /**
+     * Load a 64-bit integer from the given offset from the given address.
+     * 
+     * @param base    the base address
+     * @param offset  the offset from the base address of the value
+     * @return        the value at the given address
+     */
+    public static long load_i64(int base, int offset) {
+        return engine.load_i64(base + offset);
+    }
+    
+    /**
+     * Load a single precision floating point number from the given offset
+     * from the given address.
+     * 
+     * @param base    the base address
+     * @param offset  the offset from the base address of the value
+     * @return        the value at the given address
+     */
+    public static float load_f32(int base, int offset) {
+        return engine.load_f32(base + offset);
+    }
+    
+    /**
+     * Load a double precision floating point number from the given offset
+     * from the given address.
+     * 
+     * @param base    the base address
+     * @param offset  the offset from the base address of the value
+     * @return        the value at the given address
+     */
+    public static double load_f64(int base, int offset) {
+        return engine.load_f64(base + offset);
     }
     
     /**
@@ -737,11 +941,20 @@ public final class Memory {
      * @return      the string at the given address
      */
     public static String load_string(int addr) {
-        byte[] bytes = new byte[16];
-        int i = 0;
-        while((bytes[i++] = load_i8(addr++)) != 0)
-            if(i >= bytes.length) bytes = Arrays.copyOf(bytes, i*2);
-        return new String(Arrays.copyOf(bytes, i));
+        final byte[] bytes = new byte[engine.strlen(addr)];
+        engine.load(addr, bytes, 0, bytes.length);
+        return new String(bytes);
+    }
+    
+    /**
+     * Calculate the length of the string at the given address.
+     * 
+     * @param addr  the address of the string
+     * @return      the number of bytes in the string, excluding the
+     *              terminating null byte
+     */
+    public static int strlen(int addr) {
+        return engine.strlen(addr);
     }
     
     /**
@@ -945,9 +1158,7 @@ public final class Memory {
      *               unless align is equal to 0 or 1
      */
     public static void memcpy(int dest, int src, int len, int align) {
-        // TODO: make more efficient by using put(ByteBuffer)
-        for(int i = 0; i < len; i++)
-            store(dest + i, load_i8(src + i));
+        engine.copy(dest, src, len, align);
     }
     
     /**
@@ -975,13 +1186,7 @@ public final class Memory {
      *               unless align is equal to 0 or 1
      */
     public static void memmove(int dest, int src, int len, int align) {
-        // TODO: make more efficient by using put(ByteBuffer)
-        if(dest < src)
-            for(int i = 0; i < len; i++)
-                store(dest + i, load_i8(src + i));
-        else
-            for(int i = len - 1; i >= 0; i--)
-                store(dest + i, load_i8(src + i));
+        engine.copy(dest, src, len, align);
     }
     
     /**
@@ -1008,9 +1213,7 @@ public final class Memory {
      *               unless align is equal to 0 or 1
      */
     public static void memset(int dest, byte val, int len, int align) {
-        // TODO: make more efficient by setting larger blocks at a time
-        for(int i = dest; i < dest + len; i++)
-            store(i, val);
+        engine.fill(dest, val, len, align);
     }
     
     /**
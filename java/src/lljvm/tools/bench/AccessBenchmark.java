@@ -0,0 +1,162 @@
+/*
+* Copyright (c) 2009 David Roberts <d@vidr.cc>
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+*/
+
+package lljvm.tools.bench;
+
+import lljvm.runtime.Memory;
+
+/**
+ * Measures the cost of individual loads and stores through Memory, for
+ * sequential, strided and scattered access patterns. Run with different values of
+ * the <code>lljvm.memory.engine</code> system property to compare memory
+ * engines.
+ * 
+ * @author  David Roberts
+ */
+public final class AccessBenchmark {
+    /** The size of the region accessed, in bytes */
+    private static final int REGION_SIZE = 4<<20;
+    /** The number of accesses per operation */
+    private static final int ACCESSES = 1024;
+    /** The distance between strided accesses, in bytes */
+    private static final int STRIDE = 4096 + 4;
+    
+    /** The region accessed */
+    private static int region;
+    /** Sink for loaded values, so that loads are not eliminated */
+    private static int sink;
+    
+    /**
+     * Prevent this class from being instantiated.
+     */
+    private AccessBenchmark() {}
+    
+    /**
+     * Returns the offset of the i'th scattered access within the region.
+     * 
+     * @param i  the index of the access
+     * @return   an 8-byte aligned offset within the region
+     */
+    private static int scatter(int i) {
+        return (i * 0x9e3779b9 >>> 8) & (REGION_SIZE - 8);
+    }
+    
+    /**
+     * Print the result of the given benchmark.
+     * 
+     * @param benchmark  the benchmark
+     */
+    private static void report(Benchmark benchmark) {
+        final double time = benchmark.measure() / ACCESSES;
+        System.out.println(String.format("%-22s %10.2f",
+                benchmark.getName(), time));
+    }
+    
+    /**
+     * Run the benchmark.
+     * 
+     * @param args  Command line arguments.
+     */
+    public static void main(String[] args) {
+        region = Memory.sbrk(REGION_SIZE);
+        System.out.println("engine: " + Memory.getEngineName());
+        System.out.println(String.format("%-22s %10s",
+                "benchmark", "ns/access"));
+        report(new Benchmark("load_i32 (sequential)") {
+            protected void run(int n) {
+                int sum = 0;
+                for(int j = 0; j < n; j++)
+                    for(int i = 0; i < ACCESSES; i++)
+                        sum += Memory.load_i32(region + i * 4);
+                sink += sum;
+            }
+        });
+        report(new Benchmark("store_i32 (sequential)") {
+            protected void run(int n) {
+                for(int j = 0; j < n; j++)
+                    for(int i = 0; i < ACCESSES; i++)
+                        Memory.store(region + i * 4, i + j);
+            }
+        });
+        report(new Benchmark("load_i8 (sequential)") {
+            protected void run(int n) {
+                int sum = 0;
+                for(int j = 0; j < n; j++)
+                    for(int i = 0; i < ACCESSES; i++)
+                        sum += Memory.load_i8(region + i);
+                sink += sum;
+            }
+        });
+        report(new Benchmark("load_i32 (strided)") {
+            protected void run(int n) {
+                int sum = 0;
+                for(int j = 0; j < n; j++)
+                    for(int i = 0; i < ACCESSES; i++)
+                        sum += Memory.load_i32(region + i * STRIDE);
+                sink += sum;
+            }
+        });
+        report(new Benchmark("store_i32 (strided)") {
+            protected void run(int n) {
+                for(int j = 0; j < n; j++)
+                    for(int i = 0; i < ACCESSES; i++)
+                        Memory.store(region + i * STRIDE, i + j);
+            }
+        });
+        report(new Benchmark("copy i32 (sequential)") {
+            protected void run(int n) {
+                final int dest = region + REGION_SIZE / 2;
+                for(int j = 0; j < n; j++)
+                    for(int i = 0; i < ACCESSES; i++)
+                        Memory.store(dest + i * 4,
+                                Memory.load_i32(region + i * 4));
+            }
+        });
+        report(new Benchmark("load_i64 (scattered)") {
+            protected void run(int n) {
+                long sum = 0;
+                for(int j = 0; j < n; j++)
+                    for(int i = 0; i < ACCESSES; i++)
+                        sum += Memory.load_i64(region + scatter(i + j));
+                sink += (int) sum;
+            }
+        });
+        report(new Benchmark("store_i64 (scattered)") {
+            protected void run(int n) {
+                for(int j = 0; j < n; j++)
+                    for(int i = 0; i < ACCESSES; i++)
+                        Memory.store(region + scatter(i + j), (long) i);
+            }
+        });
+        report(new Benchmark("load/store stack") {
+            protected void run(int n) {
+                for(int j = 0; j < n; j++) {
+                    Memory.createStackFrame();
+                    final int p = Memory.allocateStack(ACCESSES * 4);
+                    for(int i = 0; i < ACCESSES; i++)
+                        Memory.store(p + i * 4, Memory.load_i32(p + i * 4) + 1);
+                    Memory.destroyStackFrame();
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,98 @@
+/*
+* Copyright (c) 2009 David Roberts <d@vidr.cc>
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+*/
+
+package lljvm.tools.bench;
+
+/**
+ * A simple microbenchmark harness. Each benchmark is warmed up before being
+ * timed, so that the measured code has been compiled by the JIT.
+ * 
+ * @author  David Roberts
+ */
+public abstract class Benchmark {
+    /** Time to spend warming up, in nanoseconds */
+    private static final long WARMUP_TIME = 200000000L;
+    /** Minimum time to spend measuring, in nanoseconds */
+    private static final long MEASURE_TIME = 500000000L;
+    
+    /** The name of this benchmark */
+    private final String name;
+    
+    /**
+     * Construct a new Benchmark with the given name.
+     * 
+     * @param name  the name of the benchmark
+     */
+    protected Benchmark(String name) {
+        this.name = name;
+    }
+    
+    /**
+     * Returns the name of this benchmark.
+     * 
+     * @return  the name of this benchmark
+     */
+    public String getName() {
+        return name;
+    }
+    
+    /**
+     * Perform the operation being measured the given number of times.
+     * 
+     * @param n  the number of operations to perform
+     */
+    protected abstract void run(int n);
+    
+    /**
+     * Run the operation for at least the given amount of time, returning the
+     * number of operations performed.
+     * 
+     * @param time  the minimum time to run for, in nanoseconds
+     * @param n     the initial number of operations per batch
+     * @return      the total number of operations performed, and the elapsed
+     *              time in nanoseconds
+     */
+    private long[] runFor(long time, int n) {
+        long ops = 0;
+        final long start = System.nanoTime();
+        long elapsed;
+        do {
+            run(n);
+            ops += n;
+            elapsed = System.nanoTime() - start;
+            if(n < (1<<30) && elapsed < time / 16)
+                n *= 2;
+        } while(elapsed < time);
+        return new long[] { ops, elapsed };
+    }
+    
+    /**
+     * Warm up, then measure the average time taken by one operation.
+     * 
+     * @return  the average time per operation, in nanoseconds
+     */
+    public double measure() {
+        runFor(WARMUP_TIME, 1);
+        final long[] result = runFor(MEASURE_TIME, 1);
+        return (double) result[1] / result[0];
+    }
+}
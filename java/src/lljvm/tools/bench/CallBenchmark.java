@@ -0,0 +1,386 @@
+/*
+* Copyright (c) 2009 David Roberts <d@vidr.cc>
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+*/
+
+package lljvm.tools.bench;
+
+import java.lang.invoke.MethodHandle;
+import java.util.function.IntBinaryOperator;
+
+import lljvm.runtime.Function;
+import lljvm.runtime.InlineCache;
+import lljvm.runtime.Memory;
+
+/**
+ * Measures calls through function pointers, as made by C code calling
+ * qsort comparators, Lua C functions and the like, against direct calls,
+ * with and without the stack frame created by functions allocating memory
+ * on the stack.
+ * Indirect calls pass packed argument lists to Function.invoke_*, as for
+ * non-prototyped calls, and handle calls pass arguments on the operand
+ * stack to the method handle returned by Function.getHandle, as for
+ * prototyped calls. Cached calls go through the per-site inline caches
+ * the backend now emits for prototyped calls, seeing one, two or more
+ * than the cached number of targets. Pointer rows measure taking the address
+ * of a function, by lookup as before and through the lazily initialized
+ * static field the backend now emits for each function whose address is
+ * taken. Callback rows call a lambda expression registered with
+ * Function.register.
+ * 
+ * @author  David Roberts
+ */
+public final class CallBenchmark {
+    /** The number of calls per operation */
+    private static final int CALLS = 1024;
+    
+    /** Sink for results, so that calls are not eliminated */
+    private static int sink;
+    
+    /** Cached function pointer, as emitted by the backend */
+    private static int fp$compare;
+    
+    /** Call site seeing a single target */
+    private static final MethodHandle MONOMORPHIC =
+        InlineCache.create("(II)I", "monomorphic");
+    /** Call site seeing two targets */
+    private static final MethodHandle POLYMORPHIC =
+        InlineCache.create("(II)I", "polymorphic");
+    /** Call site seeing too many targets to cache */
+    private static final MethodHandle MEGAMORPHIC =
+        InlineCache.create("(II)I", "megamorphic");
+    /** Call site calling a registered lambda expression */
+    private static final MethodHandle CALLBACK =
+        InlineCache.create("(II)I", "callback");
+    
+    /**
+     * Prevent this class from being instantiated.
+     */
+    private CallBenchmark() {}
+    
+    /**
+     * A function taking no arguments.
+     */
+    public static void nop() {
+        sink++;
+    }
+    
+    /**
+     * A function taking two integers.
+     * 
+     * @param a  the first integer
+     * @param b  the second integer
+     * @return   the difference between the integers
+     */
+    public static int compare(int a, int b) {
+        return a - b;
+    }
+    
+    /**
+     * A function taking two integers, creating a stack frame as the backend
+     * does for functions allocating memory on the stack.
+     * 
+     * @param a  the first integer
+     * @param b  the second integer
+     * @return   the difference between the integers
+     */
+    public static int compareWithFrame(int a, int b) {
+        Memory.createStackFrame();
+        final int result = a - b;
+        Memory.destroyStackFrame();
+        return result;
+    }
+    
+    /**
+     * A function taking two integers, called alongside compare.
+     * 
+     * @param a  the first integer
+     * @param b  the second integer
+     * @return   the sum of the integers
+     */
+    public static int sum(int a, int b) {
+        return a + b;
+    }
+    
+    /**
+     * A function taking two integers, called alongside compare.
+     * 
+     * @param a  the first integer
+     * @param b  the second integer
+     * @return   the product of the integers
+     */
+    public static int product(int a, int b) {
+        return a * b;
+    }
+    
+    /**
+     * A function taking two integers, called alongside compare.
+     * 
+     * @param a  the first integer
+     * @param b  the second integer
+     * @return   the lesser of the integers
+     */
+    public static int min(int a, int b) {
+        return a < b ? a : b;
+    }
+    
+    /**
+     * A function taking two integers, called alongside compare.
+     * 
+     * @param a  the first integer
+     * @param b  the second integer
+     * @return   the greater of the integers
+     */
+    public static int max(int a, int b) {
+        return a > b ? a : b;
+    }
+    
+    /**
+     * A function taking arguments of several types.
+     * 
+     * @param a  an integer
+     * @param b  a 64-bit integer
+     * @param c  a double precision floating point number
+     * @param d  a byte
+     * @return   the sum of the arguments
+     */
+    public static double mixed(int a, long b, double c, byte d) {
+        return a + b + c + d;
+    }
+    
+    /**
+     * Print the result of the given benchmark.
+     * 
+     * @param benchmark  the benchmark
+     */
+    private static void report(Benchmark benchmark) {
+        final double time = benchmark.measure() / CALLS;
+        System.out.println(String.format("%-26s %10.2f",
+                benchmark.getName(), time));
+    }
+    
+    /**
+     * Run the benchmark.
+     * 
+     * @param args  Command line arguments.
+     */
+    public static void main(String[] args) {
+        final String classname =
+            CallBenchmark.class.getName().replace('.', '/');
+        final int nop = Function.getFunctionPointer(classname, "nop()V");
+        final int compare =
+            Function.getFunctionPointer(classname, "compare(II)I");
+        final int mixed =
+            Function.getFunctionPointer(classname, "mixed(IJDB)D");
+        final int[] targets = {
+            compare,
+            Function.getFunctionPointer(classname, "sum(II)I"),
+            Function.getFunctionPointer(classname, "product(II)I"),
+            Function.getFunctionPointer(classname, "min(II)I"),
+            Function.getFunctionPointer(classname, "max(II)I")
+        };
+        try {
+            for(int target : targets)
+                sink += (int) MEGAMORPHIC.invokeExact(target, 7, 5);
+        } catch(Throwable e) {
+            throw new RuntimeException(e);
+        }
+        // argument lists, packed as by the backend
+        final int compareArgs = Memory.allocateData(8);
+        Memory.pack(Memory.pack(compareArgs, 7), 5);
+        final int mixedArgs = Memory.allocateData(32);
+        Memory.pack(Memory.pack(Memory.pack(Memory.pack(mixedArgs,
+                1), 2L), 3.0), (byte) 4);
+        System.out.println(String.format("%-26s %10s",
+                "benchmark", "ns/call"));
+        report(new Benchmark("direct (II)I") {
+            protected void run(int n) {
+                int sum = 0;
+                for(int j = 0; j < n; j++)
+                    for(int i = 0; i < CALLS; i++)
+                        sum += compare(Memory.load_i32(compareArgs),
+                                       Memory.load_i32(compareArgs + 4));
+                sink += sum;
+            }
+        });
+        report(new Benchmark("direct (II)I with frame") {
+            protected void run(int n) {
+                int sum = 0;
+                for(int j = 0; j < n; j++)
+                    for(int i = 0; i < CALLS; i++)
+                        sum += compareWithFrame(
+                                Memory.load_i32(compareArgs),
+                                Memory.load_i32(compareArgs + 4));
+                sink += sum;
+            }
+        });
+        report(new Benchmark("pointer lookup") {
+            protected void run(int n) {
+                int sum = 0;
+                for(int j = 0; j < n; j++)
+                    for(int i = 0; i < CALLS; i++)
+                        sum += Function.getFunctionPointer(classname,
+                                                           "compare(II)I");
+                sink += sum;
+            }
+        });
+        report(new Benchmark("pointer cached") {
+            protected void run(int n) {
+                int sum = 0;
+                for(int j = 0; j < n; j++)
+                    for(int i = 0; i < CALLS; i++) {
+                        int f = fp$compare;
+                        if(f == 0)
+                            fp$compare = f = Function.getFunctionPointer(
+                                    classname, "compare(II)I");
+                        sum += f;
+                    }
+                sink += sum;
+            }
+        });
+        report(new Benchmark("indirect ()V") {
+            protected void run(int n) {
+                for(int j = 0; j < n; j++)
+                    for(int i = 0; i < CALLS; i++)
+                        Function.invoke_void(nop, 0);
+            }
+        });
+        report(new Benchmark("indirect (II)I") {
+            protected void run(int n) {
+                int sum = 0;
+                for(int j = 0; j < n; j++)
+                    for(int i = 0; i < CALLS; i++)
+                        sum += Function.invoke_i32(compare, compareArgs);
+                sink += sum;
+            }
+        });
+        report(new Benchmark("handle (II)I") {
+            protected void run(int n) {
+                int sum = 0;
+                try {
+                    for(int j = 0; j < n; j++)
+                        for(int i = 0; i < CALLS; i++)
+                            sum += (int) Function.getHandle(compare).invoke(
+                                    Memory.load_i32(compareArgs),
+                                    Memory.load_i32(compareArgs + 4));
+                } catch(Throwable e) {
+                    throw new RuntimeException(e);
+                }
+                sink += sum;
+            }
+        });
+        report(new Benchmark("cached (II)I") {
+            protected void run(int n) {
+                int sum = 0;
+                try {
+                    for(int j = 0; j < n; j++)
+                        for(int i = 0; i < CALLS; i++)
+                            sum += (int) MONOMORPHIC.invokeExact(compare,
+                                    Memory.load_i32(compareArgs),
+                                    Memory.load_i32(compareArgs + 4));
+                } catch(Throwable e) {
+                    throw new RuntimeException(e);
+                }
+                sink += sum;
+            }
+        });
+        final int callback = Function.register(IntBinaryOperator.class,
+                                               (a, b) -> a - b);
+        report(new Benchmark("callback (II)I") {
+            protected void run(int n) {
+                int sum = 0;
+                try {
+                    for(int j = 0; j < n; j++)
+                        for(int i = 0; i < CALLS; i++)
+                            sum += (int) CALLBACK.invokeExact(callback,
+                                    Memory.load_i32(compareArgs),
+                                    Memory.load_i32(compareArgs + 4));
+                } catch(Throwable e) {
+                    throw new RuntimeException(e);
+                }
+                sink += sum;
+            }
+        });
+        report(new Benchmark("indirect callback (II)I") {
+            protected void run(int n) {
+                int sum = 0;
+                for(int j = 0; j < n; j++)
+                    for(int i = 0; i < CALLS; i++)
+                        sum += Function.invoke_i32(callback, compareArgs);
+                sink += sum;
+            }
+        });
+        Function.unregister(callback);
+        report(new Benchmark("cached (II)I x2") {
+            protected void run(int n) {
+                int sum = 0;
+                try {
+                    for(int j = 0; j < n; j++)
+                        for(int i = 0; i < CALLS; i++)
+                            sum += (int) POLYMORPHIC.invokeExact(
+                                    targets[i & 1],
+                                    Memory.load_i32(compareArgs),
+                                    Memory.load_i32(compareArgs + 4));
+                } catch(Throwable e) {
+                    throw new RuntimeException(e);
+                }
+                sink += sum;
+            }
+        });
+        report(new Benchmark("cached (II)I megamorphic") {
+            protected void run(int n) {
+                int sum = 0;
+                try {
+                    for(int j = 0; j < n; j++)
+                        for(int i = 0; i < CALLS; i++)
+                            sum += (int) MEGAMORPHIC.invokeExact(compare,
+                                    Memory.load_i32(compareArgs),
+                                    Memory.load_i32(compareArgs + 4));
+                } catch(Throwable e) {
+                    throw new RuntimeException(e);
+                }
+                sink += sum;
+            }
+        });
+        report(new Benchmark("handle (IJDB)D") {
+            protected void run(int n) {
+                double sum = 0;
+                try {
+                    for(int j = 0; j < n; j++)
+                        for(int i = 0; i < CALLS; i++)
+                            sum += (double) Function.getHandle(mixed).invoke(
+                                    1, 2L, 3.0, (byte) 4);
+                } catch(Throwable e) {
+                    throw new RuntimeException(e);
+                }
+                sink += (int) sum;
+            }
+        });
+        report(new Benchmark("indirect (IJDB)D") {
+            protected void run(int n) {
+                double sum = 0;
+                for(int j = 0; j < n; j++)
+                    for(int i = 0; i < CALLS; i++)
+                        sum += Function.invoke_f64(mixed, mixedArgs);
+                sink += (int) sum;
+            }
+        });
+    }
+}
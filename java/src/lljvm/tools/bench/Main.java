@@ -0,0 +1,62 @@
+/*
+* Copyright (c) 2009 David Roberts <d@vidr.cc>
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+*/
+
+package lljvm.tools.bench;
+
+import java.util.Arrays;
+
+/**
+ * Main class for executing the LLJVM benchmarks.
+ * 
+ * @author  David Roberts
+ */
+public class Main {
+    /**
+     * Main method.
+     * 
+     * @param args  Command line arguments.
+     */
+    public static void main(String[] args) {
+        if(args.length < 1) {
+            System.err.println("Missing benchmark name");
+            System.exit(1);
+        }
+        String name = args[0];
+        args = Arrays.copyOfRange(args, 1, args.length);
+        if(name.equals("memory"))
+            MemoryBenchmark.main(args);
+        else if(name.equals("access"))
+            AccessBenchmark.main(args);
+        else if(name.equals("paging"))
+            PagingBenchmark.main(args);
+        else if(name.equals("malloc"))
+            MallocBenchmark.main(args);
+        else if(name.equals("call"))
+            CallBenchmark.main(args);
+        else if(name.equals("string"))
+            StringBenchmark.main(args);
+        else {
+            System.err.println("Unrecognised benchmark name");
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+* Copyright (c) 2009 David Roberts <d@vidr.cc>
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+*/
+
+package lljvm.tools.bench;
+
+import lljvm.runtime.Malloc;
+
+/**
+ * Measures the throughput of the allocator provided by Malloc.
+ * 
+ * @author  David Roberts
+ */
+public final class MallocBenchmark {
+    /** The number of blocks allocated by each operation */
+    private static final int BLOCKS = 1024;
+    
+    /** Pointers to the allocated blocks */
+    private static final int[] ptrs = new int[BLOCKS];
+    /** Request sizes */
+    private static final int[] sizes = new int[BLOCKS];
+    
+    /**
+     * Prevent this class from being instantiated.
+     */
+    private MallocBenchmark() {}
+    
+    /**
+     * Fill the sizes array with sizes uniformly distributed in the given
+     * range.
+     * 
+     * @param min  the smallest size
+     * @param max  the largest size
+     */
+    private static void setSizes(int min, int max) {
+        int seed = 12345;
+        for(int i = 0; i < BLOCKS; i++) {
+            seed = seed * 1103515245 + 12345;
+            sizes[i] = min + (seed >>> 8) % (max - min + 1);
+        }
+    }
+    
+    /**
+     * Print the result of the given benchmark.
+     * 
+     * @param benchmark  the benchmark
+     */
+    private static void report(Benchmark benchmark) {
+        final double time = benchmark.measure() / BLOCKS;
+        System.out.println(String.format("%-26s %10.1f",
+                benchmark.getName(), time));
+    }
+    
+    /**
+     * Allocate, then free, one block of each size, freeing in a different
+     * order from that in which the blocks were allocated.
+     * 
+     * @param n     the number of times to repeat
+     * @param zero  whether to allocate with calloc
+     */
+    private static void allocateAndFree(int n, boolean zero) {
+        for(int j = 0; j < n; j++) {
+            for(int i = 0; i < BLOCKS; i++)
+                ptrs[i] = zero ? Malloc.calloc(1, sizes[i])
+                               : Malloc.malloc(sizes[i]);
+            for(int i = 0; i < BLOCKS; i += 2)
+                Malloc.free(ptrs[i]);
+            for(int i = 1; i < BLOCKS; i += 2)
+                Malloc.free(ptrs[i]);
+        }
+    }
+    
+    /**
+     * Run the benchmark.
+     * 
+     * @param args  Command line arguments.
+     */
+    public static void main(String[] args) {
+        System.out.println(String.format("%-26s %10s",
+                "benchmark", "ns/block"));
+        setSizes(8, 256);
+        report(new Benchmark("malloc/free (8-256)") {
+            protected void run(int n) {
+                allocateAndFree(n, false);
+            }
+        });
+        report(new Benchmark("calloc/free (8-256)") {
+            protected void run(int n) {
+                allocateAndFree(n, true);
+            }
+        });
+        setSizes(8, 64<<10);
+        report(new Benchmark("malloc/free (8-64K)") {
+            protected void run(int n) {
+                allocateAndFree(n, false);
+            }
+        });
+        report(new Benchmark("realloc (doubling to 64K)") {
+            protected void run(int n) {
+                for(int j = 0; j < n; j++) {
+                    for(int i = 0; i < BLOCKS; i++)
+                        ptrs[i] = Malloc.malloc(16);
+                    for(int size = 32; size <= 64<<10; size *= 2)
+                        for(int i = 0; i < BLOCKS; i += 64)
+                            ptrs[i] = Malloc.realloc(ptrs[i], size);
+                    for(int i = 0; i < BLOCKS; i++)
+                        Malloc.free(ptrs[i]);
+                }
+            }
+        });
+        Malloc.printStatistics(System.out);
+    }
+}
@@ -0,0 +1,136 @@
+/*
+* Copyright (c) 2009 David Roberts <d@vidr.cc>
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+*/
+
+package lljvm.tools.bench;
+
+import lljvm.runtime.Memory;
+
+/**
+ * Compares the bulk memcpy, memmove and memset implementations provided by
+ * Memory against copying one byte at a time, for a range of block sizes.
+ * 
+ * @author  David Roberts
+ */
+public final class MemoryBenchmark {
+    /** The block sizes to measure */
+    private static final int[] SIZES = {
+        8, 64, 512, 4<<10, 32<<10, 256<<10, 1<<20
+    };
+    
+    /** Source block */
+    private static int src;
+    /** Destination block */
+    private static int dest;
+    
+    /**
+     * Prevent this class from being instantiated.
+     */
+    private MemoryBenchmark() {}
+    
+    /**
+     * Copy len bytes from src to dest one byte at a time.
+     * 
+     * @param dest  the destination memory area
+     * @param src   the source memory area
+     * @param len   the number of bytes to copy
+     */
+    private static void bytewiseCopy(int dest, int src, int len) {
+        for(int i = 0; i < len; i++)
+            Memory.store(dest + i, Memory.load_i8(src + i));
+    }
+    
+    /**
+     * Set len bytes at dest to val one byte at a time.
+     * 
+     * @param dest  the destination memory area
+     * @param val   the constant byte fill value
+     * @param len   the number of bytes to set
+     */
+    private static void bytewiseFill(int dest, byte val, int len) {
+        for(int i = 0; i < len; i++)
+            Memory.store(dest + i, val);
+    }
+    
+    /**
+     * Print the result of the given benchmark.
+     * 
+     * @param benchmark  the benchmark
+     * @param size       the number of bytes processed by each operation
+     */
+    private static void report(Benchmark benchmark, int size) {
+        final double time = benchmark.measure();
+        System.out.println(String.format("%-22s %8d %14.1f %10.1f",
+                benchmark.getName(), size, time, size / time * 1e3));
+    }
+    
+    /**
+     * Run the benchmark.
+     * 
+     * @param args  Command line arguments.
+     */
+    public static void main(String[] args) {
+        final int maxSize = SIZES[SIZES.length - 1];
+        // offset the blocks so that they straddle page boundaries
+        src = Memory.sbrk(3 * maxSize) + 4096 + 8;
+        dest = src + maxSize + 4096;
+        System.out.println(String.format("%-22s %8s %14s %10s",
+                "benchmark", "bytes", "ns/op", "MB/s"));
+        for(final int size : SIZES) {
+            report(new Benchmark("memcpy") {
+                protected void run(int n) {
+                    for(int i = 0; i < n; i++)
+                        Memory.memcpy(dest, src, size, 8);
+                }
+            }, size);
+            report(new Benchmark("memcpy (unaligned)") {
+                protected void run(int n) {
+                    for(int i = 0; i < n; i++)
+                        Memory.memcpy(dest + 1, src + 3, size - 4, 1);
+                }
+            }, size - 4);
+            report(new Benchmark("memcpy (bytewise)") {
+                protected void run(int n) {
+                    for(int i = 0; i < n; i++)
+                        bytewiseCopy(dest, src, size);
+                }
+            }, size);
+            report(new Benchmark("memmove (overlapping)") {
+                protected void run(int n) {
+                    for(int i = 0; i < n; i++)
+                        Memory.memmove(src + 4, src, size, 4);
+                }
+            }, size);
+            report(new Benchmark("memset") {
+                protected void run(int n) {
+                    for(int i = 0; i < n; i++)
+                        Memory.memset(dest, (byte) i, size, 8);
+                }
+            }, size);
+            report(new Benchmark("memset (bytewise)") {
+                protected void run(int n) {
+                    for(int i = 0; i < n; i++)
+                        bytewiseFill(dest, (byte) i, size);
+                }
+            }, size);
+        }
+    }
+}
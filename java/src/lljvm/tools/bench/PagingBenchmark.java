@@ -0,0 +1,119 @@
+/*
+* Copyright (c) 2009 David Roberts <d@vidr.cc>
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+*/
+
+package lljvm.tools.bench;
+
+import lljvm.memory.MemoryEngine;
+import lljvm.memory.PagedMemoryEngine;
+
+/**
+ * Measures the effect of the page size of the paged memory engine on
+ * streaming and sparse workloads. Each page size is measured on a private
+ * engine, so the result does not depend on the configured layout.
+ * 
+ * @author  David Roberts
+ */
+public final class PagingBenchmark {
+    /** The page sizes to measure, as log2 of the size */
+    private static final int[] PAGE_SHIFTS = { 12, 14, 16, 18, 20, 21 };
+    /** The size of the address space of each engine */
+    private static final int SIZE = 256<<20;
+    /** The size of the blocks used by the streaming workloads */
+    private static final int BLOCK_SIZE = 8<<20;
+    /** The number of stores made by the sparse workload */
+    private static final int SPARSE_STORES = 4096;
+    
+    /** Sink for loaded values, so that loads are not eliminated */
+    private static long sink;
+    
+    /**
+     * Prevent this class from being instantiated.
+     */
+    private PagingBenchmark() {}
+    
+    /**
+     * Returns the address of the i'th store made by the sparse workload.
+     * 
+     * @param i  the index of the store
+     * @return   an 8-byte aligned address
+     */
+    private static int scatter(int i) {
+        return (i * 0x9e3779b9 >>> 4) & (SIZE - 8);
+    }
+    
+    /**
+     * Run the benchmark.
+     * 
+     * @param args  Command line arguments.
+     */
+    public static void main(String[] args) {
+        System.out.println(String.format("%-10s %12s %12s %14s %12s",
+                "page size", "scan MB/s", "copy MB/s", "sparse us/op",
+                "sparse KiB"));
+        for(final int pageShift : PAGE_SHIFTS) {
+            final MemoryEngine engine = new PagedMemoryEngine(SIZE, pageShift);
+            engine.map(0, SIZE);
+            engine.fill(0, (byte) 1, 2 * BLOCK_SIZE, 8);
+            
+            final double scan = new Benchmark("scan") {
+                protected void run(int n) {
+                    long sum = 0;
+                    for(int j = 0; j < n; j++)
+                        for(int addr = 0; addr < BLOCK_SIZE; addr += 8)
+                            sum += engine.load_i64(addr);
+                    sink += sum;
+                }
+            }.measure();
+            final double copy = new Benchmark("copy") {
+                protected void run(int n) {
+                    for(int j = 0; j < n; j++)
+                        engine.copy(BLOCK_SIZE, 0, BLOCK_SIZE, 8);
+                }
+            }.measure();
+            final double sparse = new Benchmark("sparse") {
+                protected void run(int n) {
+                    for(int j = 0; j < n; j++) {
+                        final MemoryEngine e =
+                            new PagedMemoryEngine(SIZE, pageShift);
+                        e.map(0, SIZE);
+                        for(int i = 0; i < SPARSE_STORES; i++)
+                            e.store(scatter(i), (long) i);
+                    }
+                }
+            }.measure();
+            
+            // memory committed by the sparse workload
+            final boolean[] touched = new boolean[SIZE>>>pageShift];
+            int pages = 0;
+            for(int i = 0; i < SPARSE_STORES; i++)
+                if(!touched[scatter(i)>>>pageShift]) {
+                    touched[scatter(i)>>>pageShift] = true;
+                    pages++;
+                }
+            
+            System.out.println(String.format("%-10s %12.1f %12.1f %14.1f %12d",
+                    (1<<pageShift>>10) + "K",
+                    BLOCK_SIZE / scan * 1e3, BLOCK_SIZE / copy * 1e3,
+                    sparse / 1e3, (long) pages << pageShift >> 10));
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+* Copyright (c) 2009 David Roberts <d@vidr.cc>
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+*/
+
+package lljvm.tools.bench;
+
+import lljvm.runtime.Memory;
+
+/**
+ * Measures the conversion of strings between Java and virtual memory, as
+ * performed for file names passed to system calls and for program
+ * arguments, against scanning and storing one byte at a time.
+ * 
+ * @author  David Roberts
+ */
+public final class StringBenchmark {
+    /** The string lengths to measure */
+    private static final int[] LENGTHS = {8, 64, 512, 4<<10};
+    
+    /** Address of the string in virtual memory */
+    private static int addr;
+    /** Sink for results, so that they are not eliminated */
+    private static int sink;
+    
+    /**
+     * Prevent this class from being instantiated.
+     */
+    private StringBenchmark() {}
+    
+    /**
+     * Calculate the length of the string at the given address one byte at a
+     * time.
+     * 
+     * @param addr  the address of the string
+     * @return      the length of the string
+     */
+    private static int bytewiseStrlen(int addr) {
+        int len = 0;
+        while(Memory.load_i8(addr + len) != 0)
+            len++;
+        return len;
+    }
+    
+    /**
+     * Print the result of the given benchmark.
+     * 
+     * @param benchmark  the benchmark
+     * @param length     the length of the string
+     */
+    private static void report(Benchmark benchmark, int length) {
+        System.out.println(String.format("%-22s %8d %14.1f",
+                benchmark.getName(), length, benchmark.measure()));
+    }
+    
+    /**
+     * Run the benchmark.
+     * 
+     * @param args  Command line arguments.
+     */
+    public static void main(String[] args) {
+        // place the strings so that the longer ones straddle a page boundary
+        addr = Memory.sbrk(128<<10) + (64<<10) - 1000;
+        System.out.println(String.format("%-22s %8s %14s",
+                "benchmark", "length", "ns/op"));
+        for(final int length : LENGTHS) {
+            final StringBuilder builder = new StringBuilder(length);
+            for(int i = 0; i < length; i++)
+                builder.append((char) ('a' + i % 26));
+            final String string = builder.toString();
+            Memory.store(addr, string);
+            report(new Benchmark("strlen") {
+                protected void run(int n) {
+                    for(int i = 0; i < n; i++)
+                        sink += Memory.strlen(addr);
+                }
+            }, length);
+            report(new Benchmark("strlen (bytewise)") {
+                protected void run(int n) {
+                    for(int i = 0; i < n; i++)
+                        sink += bytewiseStrlen(addr);
+                }
+            }, length);
+            report(new Benchmark("load_string") {
+                protected void run(int n) {
+                    for(int i = 0; i < n; i++)
+                        sink += Memory.load_string(addr).length();
+                }
+            }, length);
+            report(new Benchmark("store(String)") {
+                protected void run(int n) {
+                    for(int i = 0; i < n; i++)
+                        Memory.store(addr, string);
+                }
+            }, length);
+        }
+    }
+}
@@ -0,0 +1,4 @@
+/**
+ * LLJVM runtime benchmarks.
+ */
+package lljvm.tools.bench;
@@ -0,0 +1,41 @@
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+
+#define N 4096
+#define ROUNDS 2000
+
+struct point {
+    int x, y;
+};
+
+static int dist(const struct point *a, const struct point *b) {
+    return abs(a->x - b->x) + abs(a->y - b->y);
+}
+
+static unsigned int checksum(const char *s, unsigned int h) {
+    size_t i, n = strlen(s);
+    for(i = 0; i < n; i++)
+        h = h * 31 + s[i];
+    return h;
+}
+
+int main() {
+    static struct point points[N], copy[N];
+    static char buf[64];
+    unsigned int h = 0;
+    int i, r;
+    for(i = 0; i < N; i++) {
+        points[i].x = (i * 7919) % 1000;
+        points[i].y = (i * 104729) % 1000;
+    }
+    for(r = 0; r < ROUNDS; r++) {
+        memcpy(copy, points, sizeof(points));
+        for(i = 1; i < N; i++)
+            h += dist(&copy[i - 1], &copy[i]);
+        sprintf(buf, "round %d", r);
+        h = checksum(buf, h);
+    }
+    printf("%u\n", h);
+    return 0;
+}